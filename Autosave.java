@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Saves a copy of a document in the background every so often while it
+ * is being edited, to file.autosave next to the file. The file itself is
+ * only written by an explicit save.
+ *
+ * <p>Taking a snapshot of a document is O(1) and the snapshot never
+ * changes, so the copy is written on a background thread while the user
+ * keeps typing, and the edit loop never waits for it. There is at most
+ * one save running: edits made while it runs are picked up by the next
+ * one instead of queueing up saves behind it.
+ */
+public class Autosave implements Closeable {
+    /**
+     * Default time between saves, 30 seconds
+     */
+    public static final long DEFAULT_INTERVAL = 30_000;
+
+    private final Document document;
+    private final Path path;
+    private final long interval;
+
+    // held while a save runs
+    private final ReentrantLock saving = new ReentrantLock();
+    private final Object lock = new Object();
+    private boolean closed;
+    private volatile IOException failure;
+    private Thread thread;
+
+    // the version of the document that was last written (or opened)
+    private Document saved;
+
+    /**
+     * Create an autosave of document to path every interval milliseconds.
+     * Nothing is saved until start is called.
+     */
+    public Autosave(Document document, Path path, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        this.document = document;
+        this.path = path;
+        this.interval = interval;
+        this.saved = document.snapshot();
+    }
+
+    /**
+     * Return the path of the autosave for file
+     */
+    public static Path pathFor(Path file) {
+        return file.resolveSibling(file.getFileName() + ".autosave");
+    }
+
+    /**
+     * Return the path this autosave writes to
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Start saving in the background
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread != null || closed) {
+                return;
+            }
+            thread = new Thread(this::run, "autosave");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * Save now if the document changed since the last save and no save is
+     * running. Returns false if a save was already running. Normally this
+     * is called by the background thread.
+     */
+    public boolean save() {
+        if (!saving.tryLock()) {
+            return false;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            // kept in failure
+        } finally {
+            saving.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Save now if the document changed since the last save, first waiting
+     * for a running save to finish, and throw the error if it fails. Unlike
+     * save, the current version is always on disk when this returns.
+     */
+    public void flushNow() throws IOException {
+        saving.lock();
+        try {
+            write();
+        } finally {
+            saving.unlock();
+        }
+    }
+
+    /**
+     * Return true while a save is running
+     */
+    public boolean isSaving() {
+        return saving.isLocked();
+    }
+
+    // Write the document if it changed, with the save lock held
+    private void write() throws IOException {
+        try {
+            Document snapshot = document.snapshot();
+            if (!snapshot.isSameVersion(saved)) {
+                snapshot.save(path);
+                saved = snapshot;
+            }
+            failure = null;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Return the error from the last save, or null if it succeeded
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    // Body of the background thread
+    private void run() {
+        while (true) {
+            synchronized (lock) {
+                long end = System.currentTimeMillis() + interval;
+                long wait;
+                while (!closed && (wait = end - System.currentTimeMillis()) > 0) {
+                    try {
+                        lock.wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            save();
+        }
+    }
+
+    /**
+     * Stop saving, waiting for a running save to finish. The last
+     * autosave is kept.
+     */
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            t = thread;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop saving and delete the autosave, e.g. once the file itself has
+     * been saved
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,183 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A small benchmark harness for the rope editor, run with "make bench".
+ * Each benchmark is warmed up and then timed over several iterations of
+ * a fixed length. The report gives the mean time per operation, its spread
+ * over the iterations and the bytes allocated per operation.
+ *
+ * <p>Arguments: an optional regular expression that selects benchmarks by
+ * name (e.g. "Rope.charAt"), and "-max size" to skip sizes over size
+ * bytes. Results of operations are consumed so the JIT cannot remove
+ * them.
+ *
+ * <p>JMH is the usual tool for this, but it cannot generate code for
+ * classes in the default package, which is where all of this project
+ * lives.
+ */
+public final class Bench {
+    /**
+     * An operation to time. The result is consumed.
+     */
+    public interface Op {
+        Object run();
+    }
+
+    // Sizes from 1 KB to 100 MB
+    public static final int[] SIZES = {1 << 10, 1 << 16, 1 << 20, 100 << 20};
+
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final int ITERATIONS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Pattern filter;
+    private final long maxSize;
+
+    // compared against every result so that results stay live
+    private static volatile Object sink;
+    private static int hits;
+
+    private Bench(Pattern filter, long maxSize) {
+        this.filter = filter;
+        this.maxSize = maxSize;
+    }
+
+    public static void main(String[] args) {
+        Pattern filter = null;
+        long maxSize = Long.MAX_VALUE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-max") && i + 1 < args.length) {
+                maxSize = Long.parseLong(args[++i]);
+            } else {
+                filter = Pattern.compile(args[i]);
+            }
+        }
+        Bench bench = new Bench(filter, maxSize);
+        System.out.printf("%-28s %-9s %10s %14s %8s %14s%n",
+            "Benchmark", "Shape", "Size", "ns/op", "error", "B/op");
+        RopeBench.run(bench);
+        DocumentBench.run(bench);
+    }
+
+    /**
+     * Return true if benchmarks of size bytes should run
+     */
+    public boolean wants(int size) {
+        return size <= maxSize;
+    }
+
+    /**
+     * Time op and print a line for it, unless it is filtered out
+     */
+    public void run(String name, String shape, int size, Op op) {
+        if (!selects(name)) {
+            return;
+        }
+        try {
+            measure(name, shape, size, op);
+        } catch (OutOfMemoryError e) {
+            failed(name, shape, size, e);
+        }
+    }
+
+    /**
+     * Return true if the benchmark called name should run
+     */
+    public boolean selects(String name) {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /**
+     * Print a line for a benchmark that could not run
+     */
+    public void failed(String name, String shape, int size, Throwable e) {
+        System.out.printf(Locale.ROOT, "%-28s %-9s %10d %s%n", name, shape, size, e);
+    }
+
+    // helper function for run
+    private void measure(String name, String shape, int size, Op op) {
+        // Warm up, and find how many operations take about a millisecond
+        // so the clock is only read once per batch
+        int batch = 1;
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                consume(op.run());
+            }
+            if (System.nanoTime() - start < 1_000_000 && batch < (1 << 20)) {
+                batch *= 2;
+            }
+        }
+
+        double[] nanosPerOp = new double[ITERATIONS];
+        long allocated = 0;
+        long ops = 0;
+        for (int k = 0; k < ITERATIONS; k++) {
+            long bytes = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long now;
+            long n = 0;
+            do {
+                for (int i = 0; i < batch; i++) {
+                    consume(op.run());
+                }
+                n += batch;
+            } while ((now = System.nanoTime()) - start < ITERATION_NANOS);
+            allocated += THREADS.getCurrentThreadAllocatedBytes() - bytes;
+            ops += n;
+            nanosPerOp[k] = (double) (now - start) / n;
+        }
+
+        double mean = 0;
+        for (double t : nanosPerOp) {
+            mean += t;
+        }
+        mean /= ITERATIONS;
+        double variance = 0;
+        for (double t : nanosPerOp) {
+            variance += (t - mean) * (t - mean);
+        }
+        double error = Math.sqrt(variance / (ITERATIONS - 1)) / mean * 100;
+        System.out.printf(Locale.ROOT, "%-28s %-9s %10d %14.1f %7.1f%% %14.1f%n",
+            name, shape, size, mean, error, (double) allocated / ops);
+    }
+
+    // Use a result in a way the JIT cannot prove is unneeded
+    private static void consume(Object result) {
+        if (result == sink) {
+            hits++;
+        }
+    }
+
+    /**
+     * Return size characters of text made of short words and spaces, with
+     * a line break about every 60 characters if lines is true. The same
+     * words come up many times, as in real text.
+     */
+    public static String text(int size, boolean lines) {
+        String[] words = {"fee", "fi", "fo", "fum", "lorem", "ipsum", "dolor",
+            "sit", "amet", "ring", "around", "the", "rosie", "serenity"};
+        StringBuilder sb = new StringBuilder(size);
+        int column = 0;
+        for (int i = 0; sb.length() < size; i++) {
+            String word = words[(i * 7 + i / 5) % words.length];
+            sb.append(word);
+            column += word.length();
+            if (lines && column >= 60) {
+                sb.append('\n');
+                column = 0;
+            } else {
+                sb.append(' ');
+                column++;
+            }
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmarks of reading, writing, reducing and splitting text into word ropes, for
+ * documents of lines of about 60 characters.
+ */
+public final class DocumentBench {
+    private DocumentBench() {
+    }
+
+    /**
+     * Run every document benchmark
+     */
+    public static void run(Bench bench) {
+        for (int size : Bench.SIZES) {
+            if (!bench.wants(size)) {
+                continue;
+            }
+            byte[] bytes = Bench.text(size, true).getBytes(StandardCharsets.UTF_8);
+            Document document = new Document();
+            try {
+                document.read(new ByteArrayInputStream(bytes));
+            } catch (OutOfMemoryError e) {
+                bench.failed("Document", "lines", size, e);
+                continue;
+            }
+            bench.run("Document.read", "lines", size, () -> {
+                Document d = new Document();
+                d.read(new ByteArrayInputStream(bytes));
+                return d;
+            });
+            LeafArena arena = new LeafArena();
+            bench.run("Document.read", "offheap", size, () -> {
+                Document d = new Document();
+                d.setLeafArena(arena);
+                d.read(new ByteArrayInputStream(bytes));
+                return d;
+            });
+            bench.run("Document.write", "lines", size,
+                () -> document.write(OutputStream.nullOutputStream()));
+            bench.run("Document.reduce", "lines", size, () -> {
+                Document d = document.snapshot();
+                d.reduce();
+                return d;
+            });
+
+            String line = Bench.text(size, false);
+            bench.run("Document.makeWordRope", "line", size, () -> document.makeWordRope(line));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays a trace of keys through Editor and View on a MemoryGui, without
+ * a terminal, and reports the time from a batch of keys to the finished
+ * frame (p50, p99 and max per kind of operation) and the bytes allocated
+ * per key. Run with "make replay".
+ *
+ * <p>Arguments: [-file FILE] [-trace TRACE] [-batches N] [-warmup N].
+ * FILE is opened like the editor does (default: 1 MB of generated text).
+ * TRACE is a key trace as written by "java -Deditor.trace=TRACE Editor"
+ * (see KeyTrace). Without one, a trace of N batches of typing, pastes,
+ * arrow key storms, line breaks and joins, deletes and undo/redo is
+ * generated from a fixed seed. The trace is replayed on a fresh document
+ * warmup times before the measured run, so the JIT has settled.
+ */
+public final class Replay {
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final String[] KINDS = {
+        "type", "paste", "move", "linebreak", "delete", "join", "undo", "redo", "other"
+    };
+
+    private Replay() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        String file = null;
+        String tracePath = null;
+        int batches = 20000;
+        int warmup = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "-file":
+                file = args[i + 1];
+                break;
+            case "-trace":
+                tracePath = args[i + 1];
+                break;
+            case "-batches":
+                batches = Integer.parseInt(args[i + 1]);
+                break;
+            case "-warmup":
+                warmup = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                System.err.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+
+        List<int[]> trace = new ArrayList<>();
+        if (tracePath != null) {
+            for (String line : Files.readAllLines(Paths.get(tracePath), StandardCharsets.UTF_8)) {
+                int[] keys = KeyTrace.parse(line);
+                if (keys.length > 0) {
+                    trace.add(keys);
+                }
+            }
+        } else {
+            trace = generate(batches, new Random(42));
+        }
+
+        for (int i = 0; i < warmup; i++) {
+            replay(open(file), trace, null);
+        }
+        Stats[] stats = new Stats[KINDS.length];
+        for (int k = 0; k < KINDS.length; k++) {
+            stats[k] = new Stats(trace.size());
+        }
+        replay(open(file), trace, stats);
+
+        System.out.printf("%-10s %8s %8s %10s %10s %10s %12s%n",
+            "Operation", "Batches", "Keys", "p50 us", "p99 us", "max us", "B/key");
+        for (int k = 0; k < KINDS.length; k++) {
+            stats[k].print(KINDS[k]);
+        }
+    }
+
+    // Open file like the editor does, or read generated text
+    private static Document open(String file) {
+        Document document = new Document();
+        if (file != null) {
+            if (!document.open(Paths.get(file))) {
+                throw new IllegalArgumentException("Could not open " + file);
+            }
+        } else {
+            byte[] bytes = Bench.text(1 << 20, true).getBytes(StandardCharsets.UTF_8);
+            document.read(new ByteArrayInputStream(bytes));
+        }
+        return document;
+    }
+
+    // Feed every batch of trace to an editor on document, adding the time
+    // and allocation of each one to stats unless stats is null
+    private static void replay(Document document, List<int[]> trace, Stats[] stats)
+            throws IOException {
+        MemoryGui gui = new MemoryGui(120, 40);
+        View view = new View(document, gui);
+        Editor editor = new Editor(gui, view);
+        view.draw();
+        for (int[] keys : trace) {
+            int kind = kindOf(keys, view);
+            for (int key : keys) {
+                gui.press(key);
+            }
+            long bytes = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            boolean running = editor.process(gui.waitKeypress());
+            long nanos = System.nanoTime() - start;
+            bytes = THREADS.getCurrentThreadAllocatedBytes() - bytes;
+            if (stats != null) {
+                stats[kind].add(nanos, bytes, keys.length);
+            }
+            if (!running) {
+                break;
+            }
+        }
+    }
+
+    // Return the index in KINDS of what keys do to view
+    private static int kindOf(int[] keys, View view) {
+        int printable = 0;
+        for (int key : keys) {
+            if (key >= 32 && key <= 127) {
+                printable++;
+            }
+        }
+        if (printable == keys.length) {
+            return keys.length == 1 ? 0 : 1;
+        }
+        if (printable > 0) {
+            return 1;
+        }
+        switch (keys[0]) {
+        case Gui.UP_ARROW_KEY:
+        case Gui.DOWN_ARROW_KEY:
+        case Gui.LEFT_ARROW_KEY:
+        case Gui.RIGHT_ARROW_KEY:
+            return 2;
+        case Gui.ENTER_KEY:
+            return 3;
+        case Gui.BACKSPACE_KEY:
+            return view.getCol() == 0 ? 5 : 4;
+        case Gui.UNDO_KEY:
+            return 6;
+        case Gui.REDO_KEY:
+            return 7;
+        default:
+            return 8;
+        }
+    }
+
+    // Generate batches of keys that look like an editing session
+    private static List<int[]> generate(int batches, Random random) {
+        List<int[]> trace = new ArrayList<>();
+        String text = Bench.text(1 << 16, false);
+        while (trace.size() < batches) {
+            int r = random.nextInt(100);
+            if (r < 45) {
+                // type a word, one key at a time, and a space
+                int n = 2 + random.nextInt(8);
+                int from = random.nextInt(text.length() - n);
+                for (int i = 0; i < n; i++) {
+                    trace.add(new int[] {text.charAt(from + i)});
+                }
+                trace.add(new int[] {' '});
+            } else if (r < 50) {
+                // paste up to 20 lines at once
+                int lines = 1 + random.nextInt(20);
+                int[] keys = new int[lines * 61];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = i % 61 == 60 ? Gui.ENTER_KEY : text.charAt(i % text.length());
+                }
+                trace.add(keys);
+            } else if (r < 65) {
+                // hold down an arrow key
+                int[] arrows = {Gui.UP_ARROW_KEY, Gui.DOWN_ARROW_KEY,
+                    Gui.LEFT_ARROW_KEY, Gui.RIGHT_ARROW_KEY};
+                int arrow = arrows[random.nextInt(arrows.length)];
+                int n = 20 + random.nextInt(180);
+                for (int i = 0; i < n; i++) {
+                    trace.add(new int[] {arrow});
+                }
+            } else if (r < 75) {
+                // split a line and join it again
+                trace.add(new int[] {Gui.ENTER_KEY});
+                trace.add(new int[] {Gui.BACKSPACE_KEY});
+            } else if (r < 85) {
+                int n = 1 + random.nextInt(5);
+                for (int i = 0; i < n; i++) {
+                    trace.add(new int[] {Gui.BACKSPACE_KEY});
+                }
+            } else if (r < 92) {
+                trace.add(new int[] {Gui.ENTER_KEY});
+            } else {
+                int n = 1 + random.nextInt(4);
+                for (int i = 0; i < n; i++) {
+                    trace.add(new int[] {Gui.UNDO_KEY});
+                }
+                if (random.nextBoolean()) {
+                    trace.add(new int[] {Gui.REDO_KEY});
+                }
+            }
+        }
+        return trace.subList(0, batches);
+    }
+
+    // Latencies and allocation of one kind of operation
+    private static final class Stats {
+        private long[] nanos;
+        private int count;
+        private long keys;
+        private long bytes;
+
+        Stats(int capacity) {
+            nanos = new long[Math.max(16, capacity)];
+        }
+
+        void add(long time, long allocated, int n) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = time;
+            keys += n;
+            bytes += allocated;
+        }
+
+        void print(String name) {
+            if (count == 0) {
+                return;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            System.out.printf(Locale.ROOT, "%-10s %8d %8d %10.1f %10.1f %10.1f %12.1f%n",
+                name, count, keys, percentile(sorted, 50) / 1e3,
+                percentile(sorted, 99) / 1e3, sorted[count - 1] / 1e3, (double) bytes / keys);
+        }
+
+        private static long percentile(long[] sorted, int p) {
+            int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, i)];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.Random;
+
+/**
+ * Benchmarks of rope operations on ropes of different shapes and sizes:
+ * balanced ropes with leaves of the largest leaf size, ropes of many tiny
+ * leaves, and left-deep chains like those built by repeated concatenation
+ * without rebalancing.
+ */
+public final class RopeBench {
+    private static final String[] SHAPES = {"balanced", "tiny", "leftdeep"};
+
+    // Left-deep ropes are limited to this many leaves, since head, tail
+    // and insert recurse once per level
+    private static final int CHAIN_LEAVES = 1024;
+
+    private RopeBench() {
+    }
+
+    /**
+     * Run every rope benchmark
+     */
+    public static void run(Bench bench) {
+        Rope piece = new Rope("xyz");
+        for (int size : Bench.SIZES) {
+            if (!bench.wants(size)) {
+                continue;
+            }
+            String text = Bench.text(size, false);
+            for (String shape : SHAPES) {
+                Rope rope = build(shape, text);
+                Indices at = new Indices(size);
+                bench.run("Rope.charAt", shape, size, () -> rope.charAt(at.next()));
+                bench.run("Rope.head", shape, size, () -> rope.head(at.next()));
+                bench.run("Rope.tail", shape, size, () -> rope.tail(at.next()));
+                bench.run("Rope.insert", shape, size, () -> rope.insert(piece, at.next()));
+                bench.run("Rope.delete", shape, size, () -> rope.delete(at.next()));
+                bench.run("Rope.collect", shape, size, rope::collect);
+                bench.run("Rope.reduce", shape, size, rope::reduce);
+            }
+        }
+    }
+
+    // Build a rope holding text in the given shape
+    private static Rope build(String shape, String text) {
+        switch (shape) {
+        case "tiny":
+            return Rope.of(text, 16);
+
+        case "leftdeep":
+            int leaf = Math.max(1, (text.length() + CHAIN_LEAVES - 1) / CHAIN_LEAVES);
+            Rope chain = new Rope(text.substring(0, Math.min(leaf, text.length())));
+            for (int i = leaf; i < text.length(); i += leaf) {
+                int end = Math.min(i + leaf, text.length());
+                chain = new Rope(chain, new Rope(text.substring(i, end)));
+            }
+            return chain;
+
+        default:
+            return Rope.of(text);
+        }
+    }
+
+    // A fixed cycle of random indices in [0, size), so that picking one
+    // costs next to nothing
+    static final class Indices {
+        private final int[] indices = new int[1024];
+        private int next;
+
+        Indices(int size) {
+            Random random = new Random(42);
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = random.nextInt(size);
+            }
+        }
+
+        int next() {
+            return indices[next++ & (indices.length - 1)];
+        }
+    }
+}
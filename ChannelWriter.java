@@ -0,0 +1,265 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+
+/**
+ * Encodes text straight into a set of direct byte buffers and writes
+ * them to a channel. Buffers are only written once they are all full (or
+ * on flush), using a single gathering write where the channel supports it,
+ * and are then reused. Buffer sets are pooled between writers, so saving
+ * repeatedly does not allocate new direct memory.
+ *
+ * <p>A ChannelWriter is not thread safe. Text that cannot be encoded,
+ * such as a lone surrogate or a character the charset does not have, is
+ * written as the charset's replacement (e.g. '?'), like a PrintStream
+ * does, so that a document can always be saved.
+ */
+public class ChannelWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int BUFFER_COUNT = 16;
+
+    // buffer sets not in use by any writer
+    private static final ArrayDeque<ByteBuffer[]> POOL = new ArrayDeque<>();
+
+    private ByteBuffer[] buffers;
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private int current;
+
+    // high surrogate left over at the end of the last text, to be encoded
+    // together with the first character of the next one
+    private char high;
+    private final CharBuffer pair = CharBuffer.allocate(2);
+
+    /**
+     * Create a writer that encodes to channel with charset
+     */
+    public ChannelWriter(WritableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        synchronized (POOL) {
+            buffers = POOL.poll();
+        }
+        if (buffers == null) {
+            buffers = new ByteBuffer[BUFFER_COUNT];
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Flush and give the buffers back to the pool. The channel is not
+     * closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffers == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            for (ByteBuffer buffer : buffers) {
+                buffer.clear();
+            }
+            synchronized (POOL) {
+                POOL.push(buffers);
+            }
+            buffers = null;
+        }
+    }
+
+    /**
+     * Encode text
+     */
+    public void write(CharSequence text) throws IOException {
+        if (text.length() == 0) {
+            return;
+        }
+        CharBuffer in = CharBuffer.wrap(text);
+        if (high != 0) {
+            pair.clear();
+            pair.put(high).put(in.get()).flip();
+            high = 0;
+            encode(pair, false);
+            if (pair.hasRemaining()) {
+                high = pair.get();
+            }
+        }
+        encode(in, false);
+        if (in.hasRemaining()) {
+            // a surrogate pair is split between this text and the next
+            high = in.get();
+        }
+    }
+
+    /**
+     * Encode one character
+     */
+    public void write(char c) throws IOException {
+        // reuse pair rather than wrap a new buffer for every line break
+        pair.clear();
+        if (high != 0) {
+            pair.put(high);
+            high = 0;
+        }
+        pair.put(c).flip();
+        encode(pair, false);
+        if (pair.hasRemaining()) {
+            high = pair.get();
+        }
+    }
+
+    /**
+     * Copy bytes that are already in the right encoding, after everything
+     * written so far
+     */
+    public void write(byte[] bytes) throws IOException {
+        if (high != 0) {
+            // writes the unpaired high surrogate as a replacement
+            flush();
+        }
+        int done = 0;
+        while (done < bytes.length) {
+            ByteBuffer buffer = buffers[current];
+            int n = Math.min(buffer.remaining(), bytes.length - done);
+            buffer.put(bytes, done, n);
+            done += n;
+            if (!buffer.hasRemaining()) {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Copy length bytes starting at index offset of bytes, which are
+     * already in the right encoding, after everything written so far.
+     * The position of bytes is not changed. If bytes is recycled once its
+     * owner is unreachable, as with a LeafArena slab, the caller must keep
+     * the owner reachable until this returns (see OffHeapText.writeTo).
+     */
+    public void write(ByteBuffer bytes, int offset, int length) throws IOException {
+        if (high != 0) {
+            // writes the unpaired high surrogate as a replacement
+            flush();
+        }
+        int done = 0;
+        while (done < length) {
+            ByteBuffer buffer = buffers[current];
+            int n = Math.min(buffer.remaining(), length - done);
+            buffer.put(buffer.position(), bytes, offset + done, n);
+            buffer.position(buffer.position() + n);
+            done += n;
+            if (!buffer.hasRemaining()) {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Write out everything encoded so far. The channel is not flushed or
+     * closed.
+     */
+    public void flush() throws IOException {
+        if (high != 0) {
+            pair.clear();
+            pair.put(high).flip();
+            high = 0;
+            encode(pair, true);
+        }
+        encode(CharBuffer.allocate(0), true);
+        CoderResult result;
+        while ((result = encoder.flush(buffers[current])).isOverflow()) {
+            next();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        drain(current + 1);
+        encoder.reset();
+    }
+
+    /**
+     * Copy count bytes starting at position in source straight to the
+     * channel, after everything written so far, without decoding them
+     */
+    public void transfer(FileChannel source, long position, long count) throws IOException {
+        if (high != 0) {
+            // writes the unpaired high surrogate as a replacement
+            flush();
+        } else {
+            drain(current + 1);
+        }
+        long done = 0;
+        while (done < count) {
+            long n = source.transferTo(position + done, count - done, channel);
+            if (n <= 0) {
+                throw new EOFException("Could not copy bytes at " + (position + done));
+            }
+            done += n;
+        }
+    }
+
+    // Encode in into the buffers until all of it is consumed (or only an
+    // unpaired high surrogate is left when endOfInput is false)
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, buffers[current], endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isUnderflow()) {
+                return;
+            }
+            next();
+        }
+    }
+
+    // Move on to the next buffer, writing them all out if none is left
+    private void next() throws IOException {
+        current++;
+        if (current == buffers.length) {
+            drain(buffers.length);
+        }
+    }
+
+    // Write the first count buffers to the channel and clear them
+    private void drain(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            buffers[i].flip();
+        }
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            long remaining = 0;
+            for (int i = 0; i < count; i++) {
+                remaining += buffers[i].remaining();
+            }
+            while (remaining > 0) {
+                remaining -= gathering.write(buffers, 0, count);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (buffers[i].hasRemaining()) {
+                    channel.write(buffers[i]);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+    }
+}
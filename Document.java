@@ -1,48 +1,334 @@
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /**
- * The Document represents text as an array list of ropes
+ * The Document represents text as a balanced tree of ropes, one per line
  */
 public class Document {
     /**
-     * The file is represented by an array list of ropes
+     * The file is represented by a tree of ropes indexed by line number.
+     * The tree is immutable, so every edit replaces it with a new version.
+     * It is volatile so that other threads can take a snapshot while the
+     * document is being edited.
      */
-    private ArrayList<Rope> ropes;
+    private volatile LineTree ropes;
+
+    // Buffers reused by read, allocated on first use
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private ByteBuffer readBuffer;
+    private CharBuffer charBuffer;
+
+    // Table that reduce shares lines and pieces of lines through, made on
+    // first use
+    private RopeInterner interner;
+
+    // Where read stores the text of lines, if off the heap
+    private LeafArena arena;
+
+    // The file opened last, closed when the document is read or opened
+    // again
+    private MappedFile file;
+
+    // Statistics for the last read
+    private long bytesRead;
+    private long readNanos;
 
     /**
-     * Create a document represented by an array list of ropes
+     * Create a document represented by a tree of ropes
      */
     public Document() {
         // TODO - your code here
-        ropes = new ArrayList<>();
+        ropes = LineTree.EMPTY;
+    }
+
+    /**
+     * Return a copy of this document that is not affected by later edits
+     * to either document. This is O(1) since all lines are shared.
+     */
+    public Document snapshot() {
+        Document copy = new Document();
+        copy.ropes = ropes;
+        return copy;
+    }
+
+    /**
+     * Replace the lines of this document with those of snapshot, e.g. to
+     * go back to an earlier version. This is O(1).
+     */
+    public void restore(Document snapshot) {
+        ropes = snapshot.ropes;
+    }
+
+    /**
+     * Return true if this document holds the very same lines as other,
+     * e.g. because one is a snapshot of the other and neither was edited
+     * since. This is O(1).
+     */
+    public boolean isSameVersion(Document other) {
+        return other != null && ropes == other.ropes;
     }
 
     /**
-     * Read a file into the document
+     * Store the text of lines read from now on in arena, off the Java
+     * heap, or on the heap again if arena is null. With an arena, lines
+     * are not split into words but into leaves of the largest leaf size,
+     * so the heap only holds a few small objects per line however long
+     * the lines are. Files opened with open are not affected, since their
+     * text stays in the mapped file.
+     */
+    public void setLeafArena(LeafArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Read a file into the document. The stream is decoded as UTF-8 and
+     * closed afterwards.
      */
     public boolean read(InputStream is) {
         // TODO - your code here
-        ropes.clear();
+        try (ReadableByteChannel channel = Channels.newChannel(is)) {
+            return read(channel, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a file from a channel into the document, decoding it with the
+     * given charset. Lines end at \n, \r\n or \r. The file is read through
+     * a reusable direct buffer and split into lines as it is decoded, so
+     * it is only copied once on its way into the line ropes.
+     */
+    public boolean read(ReadableByteChannel channel, Charset charset) {
+        ropes = LineTree.EMPTY;
+        closeFile();
+        long start = System.nanoTime();
+        long bytes = 0;
         try {
-            StringBuilder sb = new StringBuilder();
-            Scanner sc = new Scanner(is);  
-            while (sc.hasNextLine()) {
-                sb.append(sc.nextLine()).append('\n');
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+                charBuffer = CharBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            ByteBuffer in = readBuffer;
+            CharBuffer out = charBuffer;
+            in.clear();
+            out.clear();
+            CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            ArrayList<Rope> list = new ArrayList<>();
+            StringBuilder pending = new StringBuilder();
+            boolean cr = false;
+            boolean eof = false;
+            while (!eof) {
+                int n = channel.read(in);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    bytes += n;
+                }
+                in.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(in, out, eof);
+                    out.flip();
+                    cr = splitLines(out, pending, list, cr);
+                    out.clear();
+                } while (result.isOverflow());
+                in.compact();
             }
-            sc.close();
-            String[] lines = sb.toString().split("\n", -1);
-            for (String line : lines) {
-                ropes.add(makeWordRope(line));
+            decoder.flush(out);
+            out.flip();
+            splitLines(out, pending, list, cr);
+            out.clear();
+
+            // The last line is kept even without a line break, and a
+            // document always ends with one more (empty) line
+            if (pending.length() > 0) {
+                list.add(makeLineRope(pending.toString()));
             }
+            list.add(null);
+            ropes = LineTree.of(list);
             return true;
         } catch (Exception e) {
             return false;
+        } finally {
+            bytesRead = bytes;
+            readNanos = System.nanoTime() - start;
+        }
+    }
+
+    // helper function for read. Add every complete line in chars to lines,
+    // keeping the start of an unfinished line in pending. cr is true if the
+    // previous character was \r, in which case a leading \n is skipped.
+    // Returns the new value of cr.
+    private boolean splitLines(CharBuffer chars, StringBuilder pending,
+            ArrayList<Rope> lines, boolean cr) {
+        char[] a = chars.array();
+        int from = chars.arrayOffset() + chars.position();
+        int end = chars.arrayOffset() + chars.limit();
+        for (int i = from; i < end; i++) {
+            char c = a[i];
+            if (c == '\n' && cr) {
+                cr = false;
+                from = i + 1;
+                continue;
+            }
+            cr = false;
+            if (c == '\n' || c == '\r') {
+                String line;
+                if (pending.length() == 0) {
+                    line = new String(a, from, i - from);
+                } else {
+                    pending.append(a, from, i - from);
+                    line = pending.toString();
+                    pending.setLength(0);
+                }
+                lines.add(makeLineRope(line));
+                from = i + 1;
+                cr = c == '\r';
+            }
+        }
+        pending.append(a, from, end - from);
+        return cr;
+    }
+
+    /**
+     * Open a UTF-8 file by memory mapping it. Lines are found by scanning
+     * the mapping for line breaks, but their text is not decoded: each line
+     * is a rope of MappedText leaves that decode on first use. Edits splice
+     * ordinary leaves in between them. Returns false if the file cannot be
+     * mapped.
+     */
+    public boolean open(Path path) {
+        ropes = LineTree.EMPTY;
+        closeFile();
+        long start = System.nanoTime();
+        long bytes = 0;
+        try {
+            file = new MappedFile(path);
+            long size = file.size();
+            bytes = size;
+
+            ArrayList<Rope> list = new ArrayList<>();
+            long pos = 0;
+            while (true) {
+                long end = file.nextLineBreak(pos);
+                list.add(makeMappedRope(file, pos, end));
+                if (end == size) {
+                    // as in read, a last line without a line break is
+                    // followed by one more empty line
+                    if (end > pos) {
+                        list.add(null);
+                    }
+                    break;
+                }
+                pos = end + 1;
+                if (file.get(end) == '\r' && pos < size && file.get(pos) == '\n') {
+                    pos++;
+                }
+            }
+            ropes = LineTree.of(list);
+            return true;
+        } catch (Exception e) {
+            closeFile();
+            return false;
+        } finally {
+            bytesRead = bytes;
+            readNanos = System.nanoTime() - start;
+        }
+    }
+
+    // helper function for open. Create a rope of MappedText leaves for the
+    // bytes from start up to end, cutting it into pieces of at most
+    // MappedFile.MAX_RANGE bytes on character boundaries. Only the length
+    // of each piece is worked out here, from the UTF-8 lead bytes: every
+    // byte that does not continue a sequence starts one character, or two
+    // (a surrogate pair) if it starts a 4 byte sequence.
+    private static Rope makeMappedRope(MappedFile file, long start, long end) {
+        Rope result = null;
+        while (start < end) {
+            long pieceEnd = Math.min(end, start + MappedFile.MAX_RANGE);
+            // back up to the start of a UTF-8 sequence
+            long cut = pieceEnd;
+            while (cut < end && cut > start && (file.get(cut) & 0xc0) == 0x80) {
+                cut--;
+            }
+            if (cut > start) {
+                pieceEnd = cut;
+            }
+            int n = (int) (pieceEnd - start);
+            boolean ascii = true;
+            int length = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = file.get(start + i);
+                if (b >= 0) {
+                    length++;
+                    continue;
+                }
+                ascii = false;
+                if ((b & 0xc0) != 0x80) {
+                    length += (b & 0xf8) == 0xf0 ? 2 : 1;
+                }
+            }
+            Rope leaf = new Rope(new MappedText(file, start, n, length, ascii));
+            result = result == null ? leaf : result.concat(leaf);
+            start = pieceEnd;
+        }
+        return result;
+    }
+
+    // Close the file opened last, if any. Old versions of the document may
+    // still hold its leaves; they read the mapping, which stays valid, and
+    // write copies them as text instead of from the channel.
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing is written through the channel, so nothing is lost
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Return the speed of the last read in bytes per second
+     */
+    public double getReadThroughput() {
+        if (readNanos <= 0) {
+            return 0;
         }
+        return bytesRead * 1e9 / readNanos;
+    }
+
+    /**
+     * Return the number of bytes consumed by the last read
+     */
+    public long getBytesRead() {
+        return bytesRead;
     }
 
     /**
@@ -59,11 +345,20 @@ public class Document {
      */
     public Rope makeWordRope(String line) {
         // TODO - your code here
-        if (line == null || line.isEmpty()) { 
+        return makeWordRope(line, false);
+    }
+
+    // helper function for makeWordRope and read. If compact is true, the
+    // leaves hold bytes where the characters allow it (see Rope.compact).
+    private static Rope makeWordRope(String line, boolean compact) {
+        if (line == null || line.isEmpty()) {
             return null;
         }
 
-        Rope result = null;
+        // collect the words as leaves and build a balanced tree over them
+        // in one pass, rather than growing a chain and rebalancing it
+        ArrayList<Rope> pieces = new ArrayList<>();
+        int maxLeaf = Rope.getMaxLeafSize();
         int n = line.length();
         int i = 0;
 
@@ -77,57 +372,260 @@ public class Document {
                 j++;
             }
 
-            String token = line.substring(i, j);
-            if (!token.isEmpty()) {
-                Rope piece = new Rope(token);
-
-                if (result == null) {
-                    result = piece;
-                } else {
-                    result = result.concat(piece);   // concatenate the new piece
+            // with chunking off (see Rope.setLeafSize) tokens are not split
+            if (maxLeaf < 2 || j - i <= maxLeaf) {
+                pieces.add(compact ? Rope.compact(line, i, j) : new Rope(line.substring(i, j)));
+            } else {
+                // a long token is split into leaves of the largest size
+                Iterator<Rope> it = Rope.of(line.substring(i, j), maxLeaf).leaves();
+                while (it.hasNext()) {
+                    Rope leaf = it.next();
+                    pieces.add(compact ? Rope.compact(leaf.data) : leaf);
                 }
             }
             i = j;
         }
-        return result;
+        return Rope.of(pieces);
+    }
+
+    // helper function for read. Return the rope for a line that was read.
+    // Without a leaf arena this is a word rope of compact leaves. With one,
+    // the line is cut into leaves of the largest size in the arena instead,
+    // so that a line usually takes a single node on the heap.
+    private Rope makeLineRope(String line) {
+        if (arena == null) {
+            return makeWordRope(line, true);
+        }
+        int n = line.length();
+        if (n == 0) {
+            return null;
+        }
+        int maxLeaf = Rope.getMaxLeafSize();
+        if (maxLeaf < 2 || n <= maxLeaf) {
+            // one leaf, also when chunking is off (see Rope.setLeafSize)
+            return new Rope(arena.allocate(line, 0, n));
+        }
+        ArrayList<Rope> leaves = new ArrayList<>(n / maxLeaf + 1);
+        for (int i = 0; i < n;) {
+            int end = Math.min(i + maxLeaf, n);
+            if (end < n && Character.isHighSurrogate(line.charAt(end - 1))) {
+                end--;
+            }
+            leaves.add(new Rope(arena.allocate(line, i, end)));
+            i = end;
+        }
+        return Rope.of(leaves);
+    }
+
+    /**
+     * Reduce every line (see Rope.reduce), sharing equal lines and pieces
+     * of lines across the whole document, e.g. the repeated boilerplate
+     * of a log or config file. Lines that are already reduced are kept as
+     * they are, so calling this again after a few edits only visits the
+     * nodes the edits made.
+     */
+    public void reduce() {
+        if (interner == null) {
+            interner = new RopeInterner();
+        }
+        LineTree tree = ropes;
+        int i = 0;
+        for (Rope line : ropes) {
+            if (line != null) {
+                Rope reduced = line.reduce(interner);
+                if (reduced != line) {
+                    tree = tree.set(i, reduced);
+                }
+            }
+            i++;
+        }
+        ropes = tree;
     }
 
     /**
      * Helpful function to print a document
      */
     public void print() {
-        for (int i = 0; i < ropes.size(); i++) {
+        int i = 0;
+        for (Rope rope : ropes) {
             String line = "";
-            Rope rope = ropes.get(i);
             if (rope != null) {
                 line = rope.collect();
             }
             System.out.println((i + 1) + ":" + line);
+            i++;
         }
     }
 
     /**
-     * Output the document to a file
+     * Output the document to a file. The text is encoded as UTF-8.
+     * The stream is not closed.
      */
     public boolean write(OutputStream os) {
         // TODO - your code here
         try {
-            PrintStream ps = new PrintStream(os);
+            write(Channels.newChannel(os), StandardCharsets.UTF_8);
+            os.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            for (int i = 0; i < ropes.size(); i++) {
-                Rope rope = ropes.get(i);
+    /**
+     * Write the document to a channel, encoding each leaf straight into
+     * pooled direct buffers with the given charset. Lines are separated by
+     * \n. The channel is not closed.
+     *
+     * <p>When writing UTF-8, text that still comes from a file opened with
+     * open is not decoded and encoded again. Runs of such leaves that are
+     * next to each other in the file, together with the \n bytes between
+     * them, are copied from the file with FileChannel.transferTo, so only
+     * edited text is encoded. Byte leaves (see Rope.compact) and
+     * OffHeapText leaves are copied byte for byte when that is their
+     * encoding, i.e. when writing Latin-1, or ASCII text in UTF-8 or
+     * US-ASCII.
+     */
+    public void write(WritableByteChannel channel, Charset charset) throws IOException {
+        boolean passthrough = charset.equals(StandardCharsets.UTF_8);
+        boolean latin1 = charset.equals(StandardCharsets.ISO_8859_1);
+        boolean ascii = passthrough || latin1 || charset.equals(StandardCharsets.US_ASCII);
+        try (ChannelWriter out = new ChannelWriter(channel, charset)) {
+            // the run of file bytes waiting to be copied, if any
+            MappedFile runFile = null;
+            long runStart = 0;
+            long runEnd = 0;
+
+            Iterator<Rope> it = ropes.iterator();
+            while (it.hasNext()) {
+                Rope rope = it.next();
                 if (rope != null) {
-                    ps.print(rope.collect());
+                    Iterator<Rope> leaves = rope.leaves();
+                    while (leaves.hasNext()) {
+                        Rope leaf = leaves.next();
+                        if (passthrough && leaf.text instanceof MappedText
+                                && ((MappedText) leaf.text).file().isOpen()) {
+                            MappedText mapped = (MappedText) leaf.text;
+                            if (mapped.file() == runFile && mapped.offset() == runEnd) {
+                                runEnd += mapped.byteLength();
+                                continue;
+                            }
+                            if (runFile != null) {
+                                out.transfer(runFile.channel(), runStart, runEnd - runStart);
+                            }
+                            runFile = mapped.file();
+                            runStart = mapped.offset();
+                            runEnd = runStart + mapped.byteLength();
+                            continue;
+                        }
+                        if (runFile != null) {
+                            out.transfer(runFile.channel(), runStart, runEnd - runStart);
+                            runFile = null;
+                        }
+                        if (ascii && leaf.latin1 != null) {
+                            if (latin1 || isAscii(leaf.latin1)) {
+                                out.write(leaf.latin1);
+                                continue;
+                            }
+                        }
+                        if (ascii && leaf.text instanceof OffHeapText) {
+                            OffHeapText bytes = (OffHeapText) leaf.text;
+                            if (latin1 ? bytes.isLatin1() : bytes.isAscii()) {
+                                bytes.writeTo(out);
+                                continue;
+                            }
+                        }
+                        out.write(leaf.leafString());
+                    }
                 }
-                // print newline except for last line
-                if (i < ropes.size() - 1) {
-                    ps.println();
+                // newline except for last line
+                if (it.hasNext()) {
+                    if (runFile != null && runEnd < runFile.size()
+                            && runFile.get(runEnd) == '\n') {
+                        runEnd++;
+                    } else {
+                        if (runFile != null) {
+                            out.transfer(runFile.channel(), runStart, runEnd - runStart);
+                            runFile = null;
+                        }
+                        out.write('\n');
+                    }
                 }
             }
-            ps.flush();
-            return true;
-        } catch (Exception e) {
-            return false;
+            if (runFile != null) {
+                out.transfer(runFile.channel(), runStart, runEnd - runStart);
+            }
+        }
+    }
+
+    // helper function for write. Return true if every byte is ASCII, in
+    // which case the bytes are also the UTF-8 encoding of the text.
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Save the document to a file as UTF-8
+     */
+    public void save(Path path) throws IOException {
+        save(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Save the document to a file. The document is written to a temporary
+     * file next to it, forced to disk and then renamed over the file, so
+     * the file is never left half written. If the file is a symbolic link,
+     * the file it points at is replaced, not the link.
+     */
+    public void save(Path path, Charset charset) throws IOException {
+        Path target = path.toAbsolutePath();
+        boolean exists = Files.exists(target);
+        if (exists) {
+            target = target.toRealPath();
+        }
+        Path temp = exists
+            ? Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp")
+            : createTempFile(target);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(channel, charset);
+                channel.force(true);
+            }
+            // the temporary file is only readable by us, keep the
+            // permissions the file had before
+            if (exists) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException e) {
+                    // not a POSIX file system
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // helper function for save. Create an empty temporary file next to
+    // target with the permissions a new file gets by default, i.e. as
+    // allowed by the umask, instead of the owner only permissions of
+    // Files.createTempFile
+    private static Path createTempFile(Path target) throws IOException {
+        while (true) {
+            long n = ThreadLocalRandom.current().nextLong() >>> 1;
+            Path temp = target.resolveSibling("." + target.getFileName() + n + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
         }
     }
 
@@ -136,13 +634,16 @@ public class Document {
      */
     public String collect() {
         // TODO - your code here
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < ropes.size(); i++) {
-            Rope rope = ropes.get(i);
+        // size the buffer up front so it is filled exactly once
+        long size = ropes.chars() + Math.max(ropes.size() - 1, 0);
+        StringBuilder sb = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE - 8));
+        Iterator<Rope> it = ropes.iterator();
+        while (it.hasNext()) {
+            Rope rope = it.next();
             if (rope != null) {
-                sb.append(rope.collect());
+                rope.appendTo(sb);
             }
-            if (i < ropes.size() - 1) {
+            if (it.hasNext()) {
                 sb.append("\n");
             }
         }
@@ -170,7 +671,7 @@ public class Document {
      */
     public void set(int i, Rope rope) {
         // TODO - your code here\
-        ropes.set(i, rope);
+        ropes = ropes.set(i, rope);
     }
 
     /**
@@ -178,7 +679,7 @@ public class Document {
      */
     public void add(Rope rope) {
         // TODO - your code here
-        ropes.add(rope);
+        ropes = ropes.insert(ropes.size(), rope);
     }
 
     /**
@@ -186,7 +687,7 @@ public class Document {
      */
     public void add(int i, Rope rope) {
         // TODO - your code here
-        ropes.add(i, rope);
+        ropes = ropes.insert(i, rope);
     }
 
     /**
@@ -194,7 +695,7 @@ public class Document {
      */
     public void delete(int i) {
         // TODO - your code here
-        ropes.remove(i);
+        ropes = ropes.delete(i);
     }
 
     
@@ -1,82 +1,254 @@
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 
 public class Editor {
+    private final Gui gui;
+    private final View view;
+    private boolean quit;
+
+    // Text typed in the current batch of keys, not yet inserted
+    private final StringBuilder typed = new StringBuilder();
+
+    // Where the keys are recorded, if anywhere, and the current line of
+    // the trace
+    private Writer trace;
+    private final StringBuilder traceLine = new StringBuilder();
+
+    /**
+     * Create an editor that takes keys from gui and applies them to view
+     */
+    public Editor(Gui gui, View view) {
+        this.gui = gui;
+        this.view = view;
+    }
+
+    /**
+     * Record every key to trace from now on, one line per batch (see
+     * KeyTrace)
+     */
+    public void setTrace(Writer trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Handle key and every key that is already queued after it, then draw
+     * the view if they changed anything. Runs of typed characters (such as
+     * a paste) are inserted as one piece of text. Returns false once the
+     * user quit.
+     */
+    public boolean process(int key) throws IOException {
+        boolean changed = false;
+        for (int c = key; c != 0 && !quit; c = gui.getKeypress()) {
+            if (trace != null) {
+                KeyTrace.append(traceLine, c);
+            }
+            if (gui.isPrintable(c)) {
+                typed.append((char) c);
+                continue;
+            }
+            if (typed.length() > 0) {
+                view.insert(typed.toString());
+                typed.setLength(0);
+                changed = true;
+            }
+            switch (c) {
+            case Gui.ESCAPE_KEY:
+            case Gui.EOF_KEY:
+                quit = true;
+                break;
+
+            case Gui.RESIZE_KEY:
+                gui.resize();
+                changed = true;
+                break;
+
+            case Gui.UP_ARROW_KEY:
+                view.moveUp();
+                changed = true;
+                break;
+
+            case Gui.DOWN_ARROW_KEY:
+                view.moveDown();
+                changed = true;
+                break;
+
+            case Gui.LEFT_ARROW_KEY:
+                view.moveLeft();
+                changed = true;
+                break;
+
+            case Gui.RIGHT_ARROW_KEY:
+                view.moveRight();
+                changed = true;
+                break;
+
+            case Gui.BACKSPACE_KEY:
+                view.delete();
+                changed = true;
+                break;
+
+            case Gui.ENTER_KEY:
+                view.linebreak();
+                changed = true;
+                break;
+
+            case Gui.UNDO_KEY:
+                view.undo();
+                changed = true;
+                break;
+
+            case Gui.REDO_KEY:
+                view.redo();
+                changed = true;
+                break;
+
+            default:
+                break;
+            }
+        }
+        if (typed.length() > 0) {
+            view.insert(typed.toString());
+            typed.setLength(0);
+            changed = true;
+        }
+        if (trace != null && traceLine.length() > 0) {
+            trace.append(traceLine).append('\n');
+            traceLine.setLength(0);
+        }
+        if (changed && !quit) {
+            view.draw();
+        }
+        return !quit;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length != 1) {
             System.err.println("No file argument");
             return;
         }
 
+        // The file is memory mapped and lines are only decoded once they
+        // are drawn or edited
         Document document = new Document();
-        FileInputStream fis = new FileInputStream(args[0]);
-        document.read(fis);
-        Gui gui = new Gui();
+        if (!document.open(Paths.get(args[0]))) {
+            System.err.println("Could not open " + args[0]);
+            return;
+        }
+        Gui gui = new TerminalGui();
+        gui.log(String.format("Read %d bytes at %.1f MB/s", document.getBytesRead(),
+            document.getReadThroughput() / 1e6));
 
         // This try block is used to catch any exceptions inside
+        Journal journal = null;
+        Autosave autosave = null;
+        BufferedWriter trace = null;
         try {
             View view = new View(document, gui);
-            gui.start();
+            Editor editor = new Editor(gui, view);
 
-            for (boolean quit = false; !quit;) {
-                gui.clear();
-                view.draw();
-                gui.refresh();
+            // Edits are logged to a journal until the file is saved. If
+            // the last session died before saving, its edits are replayed.
+            try {
+                journal = Journal.open(Paths.get(args[0]));
+                int replayed = journal.replay(view);
+                if (replayed > 0) {
+                    gui.log("Recovered " + replayed + " edits from " + journal.path());
+                }
+                view.setJournal(journal);
+            } catch (IOException e) {
+                gui.log("Could not use journal: " + e);
+                closeJournal(journal);
+                journal = null;
+            }
 
-                view.draw();
+            // A copy is also saved in the background every so often
+            autosave = new Autosave(document, Autosave.pathFor(Paths.get(args[0])),
+                Autosave.DEFAULT_INTERVAL);
+            autosave.start();
 
-                int c = 0;
-                while ((c = gui.getKeypress()) == 0) {
-                    gui.sleep(10);
-                }
-                switch (c) {
-                case Gui.ESCAPE_KEY:
-                    quit = true;
-                    break;
-
-                case Gui.UP_ARROW_KEY:
-                    view.moveUp();
-                    break;
-
-                case Gui.DOWN_ARROW_KEY:
-                    view.moveDown();
-                    break;
-
-                case Gui.LEFT_ARROW_KEY:
-                    view.moveLeft();
-                    break;
-
-                case Gui.RIGHT_ARROW_KEY:
-                    view.moveRight();
-                    break;
-
-                case Gui.BACKSPACE_KEY:
-                    view.delete();
-                    break;
-
-                case Gui.ENTER_KEY:
-                    view.linebreak();
-                    break;
-
-                default:
-                    if (gui.isPrintable(c)) {
-                        view.insert((char) c);
-                    }
-                    break;
-                }
+            // java -Deditor.trace=FILE records the keys for Bench/Replay
+            String tracePath = System.getProperty("editor.trace");
+            if (tracePath != null) {
+                trace = Files.newBufferedWriter(Paths.get(tracePath), StandardCharsets.UTF_8);
+                editor.setTrace(trace);
+            }
+            gui.start();
+
+            // Keys are read by the Gui's input thread, so waiting for the
+            // next one costs nothing. The screen is only drawn again once
+            // the keys have changed something.
+            view.draw();
+            for (boolean running = true; running;) {
+                running = editor.process(gui.waitKeypress());
             }
         } catch (Exception e) {
             // An exception occurred. Stop the GUI and print the message, then exit
             // with an error code. We need to stop the GUI first so that
             // the error can be printed out correctly.
+            // The journal is kept, so the edits are recovered next time.
             gui.stop();
+            if (autosave != null) {
+                autosave.close();
+            }
+            closeJournal(journal);
+            closeTrace(trace);
             System.out.println("\n" + e);
             e.printStackTrace();
             System.exit(1);
         }
 
-        // Clean exit -- stop the GUI
+        // Clean exit -- stop the GUI and save the file. The journal is
+        // only needed until the save succeeds.
         gui.stop();
+        autosave.close();
+        closeTrace(trace);
+        try {
+            document.save(Paths.get(args[0]));
+        } catch (IOException e) {
+            closeJournal(journal);
+            System.err.println("Could not save " + args[0] + ": " + e);
+            System.exit(1);
+        }
+        try {
+            autosave.delete();
+        } catch (IOException e) {
+            System.err.println("Could not delete " + autosave.path() + ": " + e);
+        }
+        if (journal != null) {
+            try {
+                journal.delete();
+            } catch (IOException e) {
+                System.err.println("Could not delete " + journal.path() + ": " + e);
+            }
+        }
+    }
+
+    // Close journal, if there is one, keeping its edits on disk
+    private static void closeJournal(Journal journal) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Could not write " + journal.path() + ": " + e);
+        }
+    }
+
+    // Close the key trace, if there is one
+    private static void closeTrace(Writer trace) {
+        if (trace == null) {
+            return;
+        }
+        try {
+            trace.close();
+        } catch (IOException e) {
+            System.err.println("Could not write key trace: " + e);
+        }
     }
 }
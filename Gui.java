@@ -1,21 +1,9 @@
-import com.googlecode.lanterna.TextCharacter;
-import com.googlecode.lanterna.TextColor;
-import com.googlecode.lanterna.input.KeyStroke;
-import com.googlecode.lanterna.input.KeyType;
-import com.googlecode.lanterna.graphics.TextGraphics;
-import com.googlecode.lanterna.TerminalPosition;
-import com.googlecode.lanterna.TerminalSize;
-import com.googlecode.lanterna.screen.Screen;
-import com.googlecode.lanterna.screen.TerminalScreen;
-import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
-import com.googlecode.lanterna.terminal.Terminal;
-import java.io.FileOutputStream;
-import java.io.IOException;
-
 /**
- * The Gui class exports a simple text based user interface
+ * The Gui interface is a simple text based user interface
  * that is used to draw characters, lines and other elements on
- * the Screen. It simplifies the Lanterna library.
+ * the Screen, and to read the keys the user presses. TerminalGui draws on
+ * the terminal with the Lanterna library, and MemoryGui draws into memory
+ * so the editor can be driven without a terminal.
  *
  * <p>The Gui uses coordinates where 0, 0 is the upper left corner of the
  * screen. x coordinates specify the number of columns to the right, and
@@ -23,135 +11,110 @@ import java.io.IOException;
  *
  * <p>Colors in the Gui are specified as strings. The valid color strings are:
  * WHITE, BLACK, RED, ORANGE, YELLOW, GREEN, BLUE, INDIGO, VIOLET
+ * The same colors are available as Gui.Color values, which skip the
+ * string lookup and should be used when drawing every frame.
  */
-public class Gui {
-    private static DefaultTerminalFactory defaultTerminalFactory
-        = new DefaultTerminalFactory();
-
-    private Terminal terminal;
-    private Screen screen;
-    private TextGraphics graphics;
-    private FileOutputStream logfs;
-
+public interface Gui {
     /**
-    * Creates a Gui that occupies the whole screen.
-    */
-    public Gui() {
-        try {
-            terminal = defaultTerminalFactory.createTerminal();
-            screen = new TerminalScreen(terminal);
-            graphics = screen.newTextGraphics();
-            logfs = new FileOutputStream("LOG.txt");
-        } catch (Exception e) {
-            System.err.println("Could not create GUI");
-            System.exit(-1);
+     * The colors the Gui can draw with
+     */
+    enum Color {
+        WHITE, BLACK, RED, ORANGE, YELLOW, GREEN, BLUE, INDIGO, VIOLET, DEFAULT;
+
+        private static final Color[] COLORS = values();
+
+        /**
+         * Return the color called name, ignoring case, or DEFAULT if
+         * there is none
+         */
+        public static Color of(String name) {
+            name = name.toUpperCase();
+            for (Color c : COLORS) {
+                if (c.name().equals(name)) {
+                    return c;
+                }
+            }
+            return DEFAULT;
         }
     }
 
     /**
-     * Start terminal drawing mode
+    * Use these to check if the user pressed the arrow and other keys
+        <code>
+         Gui gui = new TerminalGui();
+         int c = gui.getKeypress();
+         if (c == Gui.UP_ARROW_KEY) { ... }
+    </code>
+    */
+    int UP_ARROW_KEY = 8593;
+    int DOWN_ARROW_KEY = 8595;
+    int RIGHT_ARROW_KEY = 8594;
+    int LEFT_ARROW_KEY = 8592;
+    int ESCAPE_KEY = 27;
+    int BACKSPACE_KEY = 8;
+    int ENTER_KEY = 13;
+    int REDO_KEY = 18;  // Ctrl-R
+    int UNDO_KEY = 21;  // Ctrl-U
+    int EOF_KEY = -1;
+    int RESIZE_KEY = -2;
+
+    /**
+     * Start drawing mode
      */
-    public void start() {
-        try {
-            terminal.setCursorVisible(true);
-            screen.clear();
-            screen.startScreen();
-        } catch (Exception e) {
-            // do nothing
-        }
-    }
+    void start();
 
     /**
-     * Stop terminal drawing mode and restore normal terminal
+     * Stop drawing mode and restore the normal terminal
      */
-    public void stop() {
-        try {
-            terminal.setCursorVisible(true);
-            screen.stopScreen();
-        } catch (Exception e) {
-            // do nothing
-        }
-    }
+    void stop();
 
     /**
     * Clear the in memory screen. This not not shown untill you call refresh
     */
-    public void clear() {
-        try {
-            screen.clear();
-        } catch (Exception e) {
-            System.err.println("Could not clear screen");
-            System.exit(-1);
-        }
-    }
+    void clear();
 
     /**
     * Refresh the screen so that all the screen clears, text and lines you
     * have drawn shows up on the screen
     */
-    public void refresh() {
-        try {
-            screen.refresh();
-        } catch (Exception e) {
-            System.err.println("Could not refresh GUI");
-            System.exit(-1);
-        }
-    }
+    void refresh();
+
+    /**
+    * Pick up a new screen size after the user resized the window. The
+    * screen sizes only change when this is called.
+    */
+    void resize();
 
     /**
     * The Gui takes over the whole screen. This returns the height in an integer
     * number of rows of the screen
     */
-    public int getScreenHeight() {
-        return screen.getTerminalSize().getRows();
-    }
+    int getScreenHeight();
 
     /**
     * The Gui takes over the whole screen. This returns the height in an integer
     * number of columns of the screen
     */
-    public int getScreenWidth() {
-        return screen.getTerminalSize().getColumns();
-    }
+    int getScreenWidth();
 
     /**
     * Set the cursor position
     */
-    public void setCursorPosition(int x, int y) {
-        try {
-            screen.setCursorPosition(new TerminalPosition(x, y));
-        } catch (Exception e) {
-            assert (false);
-        }
-    }
+    void setCursorPosition(int x, int y);
 
     /**
-    * Private member function that converts string colors to Lanterna TextColor
-    * objects.
+    * Draw a character at the given screen position x and y with the
+    * given colors
+    *
+    * @param x The x coordinate to draw the character
+    * @param y The y coordinates to draw the character
+    * @param c The character to draw
+    * @param foregroundColor The foreground color of the character
+    * @param backgroundColor The background color of the character
     */
-    private static TextColor toTextColor(String color) {
-        color = color.toUpperCase();
-        if (color.equals("WHITE")) {
-            return TextColor.ANSI.WHITE;
-        } else if (color.equals("BLACK")) {
-            return TextColor.ANSI.BLACK;
-        } else if (color.equals("RED")) {
-            return TextColor.ANSI.RED;
-        } else if (color.equals("ORANGE")) {
-            return new TextColor.RGB(0xff, 0xa5, 0x00);
-        } else if (color.equals("YELLOW")) {
-            return TextColor.ANSI.YELLOW;
-        } else if (color.equals("GREEN")) {
-            return TextColor.ANSI.GREEN;
-        } else if (color.equals("BLUE")) {
-            return TextColor.ANSI.BLUE;
-        } else if (color.equals("INDIGO")) {
-            return TextColor.ANSI.CYAN;
-        } else if (color.equals("VIOLET")) {
-            return TextColor.ANSI.MAGENTA;
-        } else {
-            return TextColor.ANSI.DEFAULT;
-        }
+    default void drawCharacter(int x, int y, char c,
+        String foregroundColor, String backgroundColor) {
+        drawCharacter(x, y, c, Color.of(foregroundColor), Color.of(backgroundColor));
     }
 
     /**
@@ -164,33 +127,21 @@ public class Gui {
     * @param foregroundColor The foreground color of the character
     * @param backgroundColor The background color of the character
     */
-    public void drawCharacter(int x, int y, char c,
-        String foregroundColor, String backgroundColor) {
-        TextColor foregroundTextColor = toTextColor(foregroundColor);
-        TextColor backgroundTextColor = toTextColor(backgroundColor);
-        screen.setCharacter(x, y, new TextCharacter(c, foregroundTextColor,
-          backgroundTextColor));
-    }
+    void drawCharacter(int x, int y, char c,
+        Color foregroundColor, Color backgroundColor);
 
-    // /**
-    // * Draw a line at the given screen position x and y with the
-    // * given colors
-    // *
-    // * @param sx The x coordinate to start the line
-    // * @param sy The y coordinates to start the line
-    // * @param ex The x coordinates to end the line
-    // * @param ey The y coordinates to end the line
-    // * @param c The character to draw as the line
-    // * @param foregroundColor The foreground color of the character
-    // * @param backgroundColor The background color of the character
-    // */
-    // public void drawLine(int sx, int sy, int ex, int ey, char c,
-    //   String foregroundColor, String backgroundColor) {
-    //   TextColor foregroundTextColor = toTextColor(foregroundColor);
-    //   TextColor backgroundTextColor = toTextColor(backgroundColor);
-    //   graphics.drawLine(sx, sy, ex, ey, new TextCharacter(c,
-    //     foregroundTextColor, backgroundTextColor));
-    // }
+    /**
+    * Draw a run of characters starting at the given screen position x
+    * and y with the given colors
+    *
+    * @param x The x coordinate of the first character
+    * @param y The y coordinate of the characters
+    * @param text The characters to draw
+    * @param foregroundColor The foreground color of the characters
+    * @param backgroundColor The background color of the characters
+    */
+    void drawString(int x, int y, CharSequence text,
+        Color foregroundColor, Color backgroundColor);
 
     /**
     * Return the character that the user pressed. If the user didn't press
@@ -198,73 +149,27 @@ public class Gui {
     *
     * @return The character that the user pressed, or 0x0 if none
     */
-    public int getKeypress() {
-        try {
-            KeyStroke ks = screen.pollInput();
-            KeyType kt = ks.getKeyType();
-            switch (kt) {
-            case ArrowDown:
-                return Gui.DOWN_ARROW_KEY;
-
-            case ArrowUp:
-                return Gui.UP_ARROW_KEY;
-
-            case ArrowRight:
-                return Gui.RIGHT_ARROW_KEY;
-
-            case ArrowLeft:
-                return Gui.LEFT_ARROW_KEY;
-
-             case Escape:
-                return Gui.ESCAPE_KEY;
-
-             case Backspace:
-                return Gui.BACKSPACE_KEY;
-
-             case Enter:
-                return Gui.ENTER_KEY;
-
-            default:
-                return ks.getCharacter();
-            }
-        } catch (Exception e) {
-            return (char) 0x0;
-        }
-    }
+    int getKeypress();
 
     /**
-    * Use these to check if the user pressed the arrow and other keys
-        <code>
-         Gui gui = new Gui();
-         int c = gui.getKeypress();
-         if (c == Gui.UP_ARROW_KEY) { ... }
-    </code>
+    * Wait until the user presses a key and return it. EOF_KEY is
+    * returned once there is no more input, and RESIZE_KEY when the
+    * screen changes size.
+    *
+    * @return The character that the user pressed
     */
-    public static final int UP_ARROW_KEY = 8593;
-    public static final int DOWN_ARROW_KEY = 8595;
-    public static final int RIGHT_ARROW_KEY = 8594;
-    public static final int LEFT_ARROW_KEY = 8592;
-    public static final int ESCAPE_KEY = 27;
-    public static final int BACKSPACE_KEY = 8;
-    public static final int ENTER_KEY = 13;
+    int waitKeypress();
 
     /**
-    * Log a string to the log file "LOG.txt". This is useful because
+    * Log a string somewhere other than the screen. This is useful because
     * printf debugging does not work in drawing mode.
     */
-    public void log(String text) {
-        text += "\n";
-        try {
-          logfs.write(text.getBytes());
-        } catch (Exception e) {
-          // do nothing
-        }
-    }
+    void log(String text);
 
     /**
     * Sleep the calling thread for n milliseconds
     */
-    public void sleep(int milli) {
+    default void sleep(int milli) {
       try {
           Thread.sleep(milli);
       } catch (Exception e) {
@@ -275,7 +180,7 @@ public class Gui {
     /**
     * True if the character is printable
     */
-    public boolean isPrintable(int c) {
+    default boolean isPrintable(int c) {
       return c >= 32 && c <= 127;
     }
 }
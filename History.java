@@ -0,0 +1,199 @@
+import java.util.ArrayDeque;
+
+/**
+ * Undo and redo for a Document. Every edit records the version of the
+ * document before it, together with the cursor position. Versions are
+ * snapshots, and since lines and ropes are immutable a snapshot shares
+ * everything with the versions next to it except the nodes the edit
+ * replaced. A long history therefore costs about as much as the edits in
+ * it, not a copy of the document per step.
+ *
+ * <p>Typing is coalesced: a run of inserts where each one starts where the
+ * last one ended is undone as a single step. Any other edit, undo or redo
+ * ends the run.
+ *
+ * <p>The history keeps an estimate of the memory that only its versions
+ * hold on to, and forgets the oldest versions once that goes over the
+ * budget.
+ */
+public class History {
+    /**
+     * A version of the document and the cursor position in it
+     */
+    public static final class Version {
+        public final Document document;
+        public final int row;
+        public final int col;
+
+        // estimated bytes kept alive only by this version
+        final long cost;
+
+        Version(Document document, int row, int col, long cost) {
+            this.document = document;
+            this.row = row;
+            this.col = col;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Default memory budget, 16 MB
+     */
+    public static final long DEFAULT_BUDGET = 16L << 20;
+
+    // Rough size of a rope or line tree node, and of a version itself
+    private static final int NODE_BYTES = 48;
+    private static final int VERSION_BYTES = 96;
+
+    // Newest versions are at the end of undo and redo
+    private final ArrayDeque<Version> undo = new ArrayDeque<>();
+    private final ArrayDeque<Version> redo = new ArrayDeque<>();
+    private final long budget;
+    private long used;
+
+    // The position where the current run of typing ends, if typing is true
+    private boolean typing;
+    private int typedRow;
+    private int typedCol;
+
+    /**
+     * Create a history with the default memory budget
+     */
+    public History() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Create a history that keeps at most about budget bytes of old
+     * versions
+     */
+    public History(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget cannot be negative");
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Record document as it is before an edit of line row, with the cursor
+     * at row, col. This ends any run of typing.
+     */
+    public void record(Document document, int row, int col) {
+        typing = false;
+        push(document, row, col);
+    }
+
+    /**
+     * Record document as it is before typing at row, col that will leave
+     * the cursor at row, endCol. Nothing is recorded if this continues
+     * the run of typing that the last call ended.
+     */
+    public void recordTyping(Document document, int row, int col, int endCol) {
+        if (!(typing && row == typedRow && col == typedCol)) {
+            push(document, row, col);
+        }
+        typing = true;
+        typedRow = row;
+        typedCol = endCol;
+    }
+
+    /**
+     * Return true if there is a version to go back to
+     */
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    /**
+     * Return true if there is an undone version to go forward to
+     */
+    public boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /**
+     * Go back one step from document with the cursor at row, col. Returns
+     * the version to restore, or null if there is none.
+     */
+    public Version undo(Document document, int row, int col) {
+        return step(undo, redo, document, row, col);
+    }
+
+    /**
+     * Go forward one step undone by undo. Returns the version to restore,
+     * or null if there is none.
+     */
+    public Version redo(Document document, int row, int col) {
+        return step(redo, undo, document, row, col);
+    }
+
+    /**
+     * Return the number of versions that undo can go back through
+     */
+    public int size() {
+        return undo.size();
+    }
+
+    /**
+     * Return the estimated number of bytes held only by old versions
+     */
+    public long memoryUsed() {
+        return used;
+    }
+
+    // Take the newest version from one stack, saving the current one on
+    // the other
+    private Version step(ArrayDeque<Version> from, ArrayDeque<Version> to,
+            Document document, int row, int col) {
+        typing = false;
+        Version version = from.pollLast();
+        if (version == null) {
+            return null;
+        }
+        used -= version.cost;
+        Version current = version(document, row, col);
+        to.addLast(current);
+        used += current.cost;
+        evict();
+        return version;
+    }
+
+    // Save the version before a new edit. Redo is no longer possible.
+    private void push(Document document, int row, int col) {
+        for (Version v : redo) {
+            used -= v.cost;
+        }
+        redo.clear();
+        Version version = version(document, row, col);
+        undo.addLast(version);
+        used += version.cost;
+        evict();
+    }
+
+    // Forget the oldest versions until the history fits in the budget
+    private void evict() {
+        while (used > budget && !undo.isEmpty()) {
+            used -= undo.pollFirst().cost;
+        }
+        while (used > budget && !redo.isEmpty()) {
+            used -= redo.pollFirst().cost;
+        }
+    }
+
+    // Snapshot document and estimate what the snapshot alone keeps alive:
+    // the path down the line tree to the edited line, the path down its
+    // rope and the leaf at the end of it, which an edit may copy.
+    private static Version version(Document document, int row, int col) {
+        long cost = VERSION_BYTES;
+        int rows = document.rows();
+        cost += NODE_BYTES * (long) (33 - Integer.numberOfLeadingZeros(rows));
+        if (row >= 0 && row < rows) {
+            Rope line = document.get(row);
+            if (line != null) {
+                cost += NODE_BYTES * (long) (line.depth() + 1);
+                cost += 2L * Math.min(line.totalWeight(), Rope.getMaxLeafSize());
+            }
+        }
+        return new Version(document.snapshot(), row, col, cost);
+    }
+}
@@ -0,0 +1,371 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the edits made to a file since it was last saved,
+ * kept next to it as file.journal. If the editor dies before saving, the
+ * edits are replayed against the unchanged file the next time it is
+ * opened.
+ *
+ * <p>Appending an edit only copies it into a buffer. A background thread
+ * writes the buffer to the journal and forces it to disk, and every edit
+ * made while one write is being forced goes out in the next one (group
+ * commit), so the caller never waits for the disk.
+ *
+ * <p>The journal starts with a header holding the size and modification
+ * time of the file it belongs to. Each record is its length, a CRC32 of
+ * its contents, the operation, the cursor row and column before it and,
+ * for inserts, the text in UTF-8. Replay stops at the first record that
+ * is incomplete or does not match its CRC, which is where a crash cut
+ * the journal short.
+ */
+public class Journal implements Closeable {
+    private static final int MAGIC = 0x524a4e4c;  // "RJNL"
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    // operations
+    private static final byte INSERT = 1;
+    private static final byte LINEBREAK = 2;
+    private static final byte DELETE = 3;
+    private static final byte UNDO = 4;
+    private static final byte REDO = 5;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long fileTime;
+
+    // Records appended since the writer thread last took them. The writer
+    // swaps pending and writing, so appends never wait for the disk.
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 12);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 12);
+    private long appended;
+    private long synced;
+    private boolean closed;
+    private IOException failure;
+    private Thread writer;
+
+    private Journal(Path path, FileChannel channel, long fileSize, long fileTime) {
+        this.path = path;
+        this.channel = channel;
+        this.fileSize = fileSize;
+        this.fileTime = fileTime;
+    }
+
+    /**
+     * Return the path of the journal for file
+     */
+    public static Path pathFor(Path file) {
+        return file.resolveSibling(file.getFileName() + ".journal");
+    }
+
+    /**
+     * Open the journal for file, creating it if there is none. Edits
+     * already in it are kept for replay as long as it was made for the
+     * file as it is now.
+     */
+    public static Journal open(Path file) throws IOException {
+        Path path = pathFor(file);
+        long size = Files.size(file);
+        long time = Files.getLastModifiedTime(file).toMillis();
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Journal journal = new Journal(path, channel, size, time);
+        try {
+            if (journal.headerMatches()) {
+                channel.position(channel.size());
+            } else {
+                journal.reset();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Return the path of this journal
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Apply every complete edit in the journal to view, in order, and get
+     * ready to append after them. A torn record at the end is cut off.
+     * Must be called before anything is appended. Returns the number of
+     * edits replayed.
+     */
+    public int replay(View view) throws IOException {
+        long size = channel.size();
+        long pos = HEADER_SIZE;
+        int count = 0;
+        ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (pos + RECORD_HEADER_SIZE <= size) {
+            head.clear();
+            readFully(head, pos);
+            head.flip();
+            int length = head.getInt();
+            int expected = head.getInt();
+            if (length < 9 || pos + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, pos + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            record.flip();
+            apply(view, record);
+            count++;
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        channel.truncate(pos);
+        channel.position(pos);
+        return count;
+    }
+
+    // Apply one record to view
+    private static void apply(View view, ByteBuffer record) {
+        byte op = record.get();
+        int row = record.getInt();
+        int col = record.getInt();
+        view.moveTo(row, col);
+        switch (op) {
+        case INSERT:
+            view.insert(StandardCharsets.UTF_8.decode(record).toString());
+            break;
+
+        case LINEBREAK:
+            view.linebreak();
+            break;
+
+        case DELETE:
+            view.delete();
+            break;
+
+        case UNDO:
+            view.undo();
+            break;
+
+        case REDO:
+            view.redo();
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Log text typed at row, col
+     */
+    public void insert(int row, int col, String text) {
+        append(INSERT, row, col, text);
+    }
+
+    /**
+     * Log a line break at row, col
+     */
+    public void linebreak(int row, int col) {
+        append(LINEBREAK, row, col, null);
+    }
+
+    /**
+     * Log a delete of the character before row, col
+     */
+    public void delete(int row, int col) {
+        append(DELETE, row, col, null);
+    }
+
+    /**
+     * Log an undo with the cursor at row, col
+     */
+    public void undo(int row, int col) {
+        append(UNDO, row, col, null);
+    }
+
+    /**
+     * Log a redo with the cursor at row, col
+     */
+    public void redo(int row, int col) {
+        append(REDO, row, col, null);
+    }
+
+    // Add a record to the pending buffer and wake up the writer
+    private void append(byte op, int row, int col, String text) {
+        byte[] bytes = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+        int length = 9 + (bytes == null ? 0 : bytes.length);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(op).putInt(row).putInt(col);
+        if (bytes != null) {
+            record.put(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+
+        synchronized (lock) {
+            if (closed || failure != null) {
+                return;
+            }
+            if (pending.remaining() < RECORD_HEADER_SIZE + length) {
+                int needed = pending.position() + RECORD_HEADER_SIZE + length;
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, needed));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            pending.putInt(length).putInt((int) crc.getValue()).put(record.array());
+            appended++;
+            if (writer == null) {
+                writer = new Thread(this::writeLoop, "journal");
+                writer.setDaemon(true);
+                writer.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    // Body of the writer thread. Write whatever is pending and force it to
+    // disk, until closed.
+    private void writeLoop() {
+        while (true) {
+            long batch;
+            synchronized (lock) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+                ByteBuffer swap = writing;
+                writing = pending;
+                pending = swap;
+                batch = appended;
+            }
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            } finally {
+                writing.clear();
+            }
+            synchronized (lock) {
+                synced = batch;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every edit logged so far is on disk
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            while (synced < appended && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing journal", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Flush and close the journal, keeping it on disk for replay
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Close and delete the journal, e.g. once the file has been saved
+     */
+    public void delete() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            if (writer != null) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    // Return true if the journal has a header for the file as it is now
+    private boolean headerMatches() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        return header.getInt() == MAGIC && header.getLong() == fileSize
+            && header.getLong() == fileTime;
+    }
+
+    // Throw away the contents of the journal and write a new header
+    private void reset() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(fileSize).putLong(fileTime).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(false);
+        channel.position(HEADER_SIZE);
+    }
+
+    // Read buffer.remaining() bytes at position
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of journal " + path);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.Arrays;
+
+/**
+ * Text form of the keys given to the editor, used to record a session
+ * and replay it later. Each line of a trace is one batch of keys that
+ * arrived together. Printable characters stand for themselves, and other
+ * keys are written as a name in angle brackets, e.g. &lt;ENTER&gt;, or as
+ * &lt;#code&gt; if they have no name. A literal &lt; is written as &lt;LT&gt;.
+ */
+public final class KeyTrace {
+    private static final String[] NAMES = {
+        "UP", "DOWN", "LEFT", "RIGHT", "ESC", "BACKSPACE", "ENTER", "UNDO",
+        "REDO", "EOF", "RESIZE", "LT"
+    };
+    private static final int[] KEYS = {
+        Gui.UP_ARROW_KEY, Gui.DOWN_ARROW_KEY, Gui.LEFT_ARROW_KEY,
+        Gui.RIGHT_ARROW_KEY, Gui.ESCAPE_KEY, Gui.BACKSPACE_KEY, Gui.ENTER_KEY,
+        Gui.UNDO_KEY, Gui.REDO_KEY, Gui.EOF_KEY, Gui.RESIZE_KEY, '<'
+    };
+
+    private KeyTrace() {
+    }
+
+    /**
+     * Append key to line in trace form
+     */
+    public static void append(StringBuilder line, int key) {
+        for (int i = 0; i < KEYS.length; i++) {
+            if (KEYS[i] == key) {
+                line.append('<').append(NAMES[i]).append('>');
+                return;
+            }
+        }
+        if (key >= 32 && key <= 126) {
+            line.append((char) key);
+        } else {
+            line.append("<#").append(key).append('>');
+        }
+    }
+
+    /**
+     * Return the keys in a line of a trace
+     */
+    public static int[] parse(String line) {
+        int[] keys = new int[line.length()];
+        int n = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            int end = c == '<' ? line.indexOf('>', i) : -1;
+            if (end < 0) {
+                keys[n++] = c;
+                continue;
+            }
+            String name = line.substring(i + 1, end);
+            keys[n++] = name.startsWith("#") ? Integer.parseInt(name.substring(1)) : keyFor(name);
+            i = end;
+        }
+        return Arrays.copyOf(keys, n);
+    }
+
+    // Return the key called name
+    private static int keyFor(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return KEYS[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown key <" + name + ">");
+    }
+}
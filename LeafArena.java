@@ -0,0 +1,185 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.BiConsumer;
+
+/**
+ * Off-heap storage for the text of rope leaves. Text is copied into large
+ * direct ByteBuffer slabs, and each leaf only keeps a small OffHeapText
+ * handle on the heap, so the garbage collector sees one object per leaf
+ * however long the text is, and never scans or copies the text itself.
+ *
+ * <p>Leaves are allocated one after another from the current slab. There
+ * is no count of the handles into a slab: each handle refers to its slab,
+ * and once the garbage collector finds the slab unreachable, i.e. no
+ * handle is left, a Cleaner gives its buffer back to the arena, which
+ * keeps a few free slabs for reuse and lets the rest go. Since ropes are
+ * immutable and shared between versions of a document, only the
+ * collector can tell when a leaf is dead.
+ *
+ * <p>Allocation is thread safe.
+ */
+public final class LeafArena {
+    /**
+     * The default size of a slab in bytes
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    // Free slabs kept for reuse
+    private static final int MAX_FREE = 4;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final int slabSize;
+    // registers the action that gives a slab's buffer back, to be run once
+    // the slab is unreachable
+    private final BiConsumer<Object, Runnable> reclaimer;
+    private Slab current;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int slabs;
+    private long reserved;
+
+    /**
+     * A slab of text. Handles point at their slab to keep it alive.
+     */
+    static final class Slab {
+        final ByteBuffer buffer;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // Gives the buffer of a collected slab back to its arena. It must not
+    // refer to the slab, or the slab would never be collected.
+    private static final class Release implements Runnable {
+        private final LeafArena arena;
+        private final ByteBuffer buffer;
+
+        Release(LeafArena arena, ByteBuffer buffer) {
+            this.arena = arena;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            arena.release(buffer);
+        }
+    }
+
+    /**
+     * Create an arena with slabs of DEFAULT_SLAB_SIZE bytes
+     */
+    public LeafArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create an arena with slabs of slabSize bytes
+     */
+    public LeafArena(int slabSize) {
+        this(slabSize, CLEANER::register);
+    }
+
+    /**
+     * Create an arena with slabs of slabSize bytes that passes each new
+     * slab and the action that gives its buffer back to reclaimer, instead
+     * of registering them with a Cleaner. For tests, which can then run
+     * the action as the collector would, without waiting for it.
+     */
+    LeafArena(int slabSize, BiConsumer<Object, Runnable> reclaimer) {
+        if (slabSize < 2) {
+            throw new IllegalArgumentException("Slab size must be at least 2");
+        }
+        this.slabSize = slabSize;
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Copy the characters of s from start up to but not including end
+     * into the arena, and return a handle to them. Text that fits in
+     * Latin-1 takes one byte per character, and other text two.
+     */
+    public OffHeapText allocate(CharSequence s, int start, int end) {
+        int length = end - start;
+        if (length <= 0) {
+            throw new IllegalArgumentException("Text cannot be empty");
+        }
+        boolean wide = false;
+        for (int i = start; i < end && !wide; i++) {
+            wide = s.charAt(i) > 0xff;
+        }
+        int bytes = wide ? length * 2 : length;
+
+        Slab slab;
+        int offset;
+        synchronized (this) {
+            if (current == null || current.buffer.remaining() < bytes) {
+                current = newSlab(Math.max(bytes, slabSize));
+            }
+            slab = current;
+            offset = slab.buffer.position();
+            slab.buffer.position(offset + bytes);
+        }
+        // the range is ours alone, so it is filled in outside the lock
+        ByteBuffer buffer = slab.buffer;
+        if (wide) {
+            for (int i = 0; i < length; i++) {
+                buffer.putChar(offset + i * 2, s.charAt(start + i));
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put(offset + i, (byte) s.charAt(start + i));
+            }
+        }
+        return new OffHeapText(slab, offset, length, wide);
+    }
+
+    /**
+     * Copy all of s into the arena (see allocate)
+     */
+    public OffHeapText allocate(CharSequence s) {
+        return allocate(s, 0, s.length());
+    }
+
+    /**
+     * Return the number of slabs that hold live text, including the one
+     * being filled
+     */
+    public synchronized int slabs() {
+        return slabs;
+    }
+
+    /**
+     * Return the number of off-heap bytes held by the arena, in slabs
+     * that are in use or kept for reuse
+     */
+    public synchronized long reservedBytes() {
+        return reserved;
+    }
+
+    // Return a new slab of at least size bytes, reusing a free one if it
+    // is big enough
+    private Slab newSlab(int size) {
+        ByteBuffer buffer = size == slabSize ? free.poll() : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+            reserved += size;
+        }
+        Slab slab = new Slab(buffer);
+        reclaimer.accept(slab, new Release(this, buffer));
+        slabs++;
+        return slab;
+    }
+
+    // Take back the buffer of a slab that is no longer used by any leaf
+    private synchronized void release(ByteBuffer buffer) {
+        slabs--;
+        if (buffer.capacity() == slabSize && free.size() < MAX_FREE) {
+            buffer.clear();
+            free.push(buffer);
+        } else {
+            reserved -= buffer.capacity();
+        }
+    }
+}
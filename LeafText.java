@@ -0,0 +1,44 @@
+/**
+ * Character storage for a rope leaf that is not held in a String, for
+ * example text that still lives in a memory mapped file. A Rope leaf holds
+ * a String (in data), Latin-1 bytes (in latin1) or a LeafText (in text).
+ *
+ * <p>Implementations must be immutable, since ropes are.
+ */
+public interface LeafText {
+    /**
+     * Return the number of characters
+     */
+    int length();
+
+    /**
+     * Return the character at index i
+     */
+    char charAt(int i);
+
+    /**
+     * Return the characters from start up to but not including end as a
+     * LeafText, or null if that cannot be done without copying. In that
+     * case the rope copies the characters into a String leaf instead.
+     */
+    LeafText slice(int start, int end);
+
+    /**
+     * Append the characters from start up to but not including end to sb.
+     * Used to copy the text into other leaves and strings without making
+     * a String of it first.
+     */
+    void appendTo(StringBuilder sb, int start, int end);
+
+    /**
+     * Copy the characters from start up to but not including end into dst
+     * at offset, like String.getChars
+     */
+    void getChars(int start, int end, char[] dst, int offset);
+
+    /**
+     * Return all the characters as a String
+     */
+    @Override
+    String toString();
+}
@@ -0,0 +1,242 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable list of lines stored as a balanced (AVL) tree indexed by
+ * line number. Like ropes, every change returns a new tree that shares all
+ * untouched nodes with the old one, so lookup, insert and delete are
+ * O(log n) and keeping an old version around is free.
+ *
+ * <p>Lines are ropes and may be null for empty lines, the same as in
+ * Document. Every node also caches the number of lines and characters in
+ * its subtree.
+ */
+public final class LineTree implements Iterable<Rope> {
+    /**
+     * The tree with no lines
+     */
+    public static final LineTree EMPTY = new LineTree(null);
+
+    private final Node root;
+
+    private LineTree(Node root) {
+        this.root = root;
+    }
+
+    // A node of the tree. The line at this node comes after all lines in
+    // left and before all lines in right.
+    private static final class Node {
+        final Rope line;
+        final Node left;
+        final Node right;
+        final int size;
+        final long chars;
+        final int height;
+
+        Node(Node left, Rope line, Node right) {
+            this.line = line;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + 1 + size(right);
+            this.chars = chars(left) + (line == null ? 0 : line.totalWeight())
+                + chars(right);
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static long chars(Node n) {
+        return n == null ? 0 : n.chars;
+    }
+
+    private static int height(Node n) {
+        return n == null ? 0 : n.height;
+    }
+
+    /**
+     * Build a balanced tree holding lines in order, in O(n)
+     */
+    public static LineTree of(List<Rope> lines) {
+        return new LineTree(build(lines, 0, lines.size()));
+    }
+
+    // helper function for of, builds lines[lo, hi)
+    private static Node build(List<Rope> lines, int lo, int hi) {
+        if (lo >= hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        return new Node(build(lines, lo, mid), lines.get(mid), build(lines, mid + 1, hi));
+    }
+
+    /**
+     * Return the number of lines
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Return the number of characters in all lines, not counting line breaks
+     */
+    public long chars() {
+        return chars(root);
+    }
+
+    /**
+     * Return the line at index i
+     */
+    public Rope get(int i) {
+        checkIndex(i, size());
+        Node n = root;
+        while (true) {
+            int l = size(n.left);
+            if (i < l) {
+                n = n.left;
+            } else if (i == l) {
+                return n.line;
+            } else {
+                i -= l + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * Return a tree with the line at index i replaced
+     */
+    public LineTree set(int i, Rope line) {
+        checkIndex(i, size());
+        return new LineTree(set(root, i, line));
+    }
+
+    private static Node set(Node n, int i, Rope line) {
+        int l = size(n.left);
+        if (i < l) {
+            return new Node(set(n.left, i, line), n.line, n.right);
+        } else if (i == l) {
+            return new Node(n.left, line, n.right);
+        } else {
+            return new Node(n.left, n.line, set(n.right, i - l - 1, line));
+        }
+    }
+
+    /**
+     * Return a tree with line inserted at index i. The line that was at
+     * i and all lines after it move down by one. i may equal size() to
+     * append a line.
+     */
+    public LineTree insert(int i, Rope line) {
+        checkIndex(i, size() + 1);
+        return new LineTree(insert(root, i, line));
+    }
+
+    private static Node insert(Node n, int i, Rope line) {
+        if (n == null) {
+            return new Node(null, line, null);
+        }
+        int l = size(n.left);
+        if (i <= l) {
+            return balance(insert(n.left, i, line), n.line, n.right);
+        } else {
+            return balance(n.left, n.line, insert(n.right, i - l - 1, line));
+        }
+    }
+
+    /**
+     * Return a tree with the line at index i removed
+     */
+    public LineTree delete(int i) {
+        checkIndex(i, size());
+        return new LineTree(delete(root, i));
+    }
+
+    private static Node delete(Node n, int i) {
+        int l = size(n.left);
+        if (i < l) {
+            return balance(delete(n.left, i), n.line, n.right);
+        } else if (i > l) {
+            return balance(n.left, n.line, delete(n.right, i - l - 1));
+        }
+        if (n.left == null) {
+            return n.right;
+        }
+        if (n.right == null) {
+            return n.left;
+        }
+        // replace this line with the first line of the right subtree
+        Node first = n.right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return balance(n.left, first.line, delete(n.right, 0));
+    }
+
+    // Create a node from subtrees whose heights differ by at most two,
+    // rotating if needed so that they differ by at most one
+    private static Node balance(Node left, Rope line, Node right) {
+        int hl = height(left);
+        int hr = height(right);
+        if (hl > hr + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.left, left.line, new Node(left.right, line, right));
+            }
+            Node lr = left.right;
+            return new Node(new Node(left.left, left.line, lr.left), lr.line,
+                new Node(lr.right, line, right));
+        }
+        if (hr > hl + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(new Node(left, line, right.left), right.line, right.right);
+            }
+            Node rl = right.left;
+            return new Node(new Node(left, line, rl.left), rl.line,
+                new Node(rl.right, right.line, right.right));
+        }
+        return new Node(left, line, right);
+    }
+
+    private static void checkIndex(int i, int bound) {
+        if (i < 0 || i >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + bound);
+        }
+    }
+
+    /**
+     * Return an iterator over the lines in order
+     */
+    @Override
+    public Iterator<Rope> iterator() {
+        return new Iterator<Rope>() {
+            // nodes whose line and right subtree are still to be visited
+            private final ArrayDeque<Node> stack = pushLeft(new ArrayDeque<>(), root);
+
+            private ArrayDeque<Node> pushLeft(ArrayDeque<Node> s, Node n) {
+                for (; n != null; n = n.left) {
+                    s.push(n);
+                }
+                return s;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public Rope next() {
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node n = stack.pop();
+                pushLeft(stack, n.right);
+                return n.line;
+            }
+        };
+    }
+}
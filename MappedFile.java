@@ -0,0 +1,128 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file mapped read only into memory. Files can be larger than the 2 GB
+ * a single MappedByteBuffer can hold, so the file is mapped as a series of
+ * 1 GB windows. Each window also maps the first MAX_RANGE bytes of the
+ * next one, so any range of at most MAX_RANGE bytes lies in one window.
+ *
+ * <p>The file is kept open so its bytes can also be copied with
+ * FileChannel.transferTo, until close is called. The mapping stays valid
+ * after the file is replaced or deleted, and even after close, until the
+ * MappedFile is garbage collected.
+ */
+public final class MappedFile implements Closeable {
+    /**
+     * The largest range that slice can return
+     */
+    public static final int MAX_RANGE = 1 << 16;
+
+    private static final int WINDOW = 1 << 30;
+
+    private final Path path;
+    private final long size;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] windows;
+
+    /**
+     * Map the file at path
+     */
+    public MappedFile(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            int count = (int) ((size + WINDOW - 1) / WINDOW);
+            windows = new MappedByteBuffer[count];
+            for (int k = 0; k < count; k++) {
+                long start = (long) k * WINDOW;
+                long length = Math.min(size - start, (long) WINDOW + MAX_RANGE);
+                windows[k] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the path the file was mapped from
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Return the open, read only channel of the file
+     */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Return true if the channel is still open, i.e. close has not been
+     * called
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Return the size of the file in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Return the byte at position pos
+     */
+    public byte get(long pos) {
+        return windows[(int) (pos / WINDOW)].get((int) (pos % WINDOW));
+    }
+
+    /**
+     * Return a read only buffer over length bytes starting at pos.
+     * length must be at most MAX_RANGE.
+     */
+    public ByteBuffer slice(long pos, int length) {
+        if (length > MAX_RANGE) {
+            throw new IllegalArgumentException("Range too long: " + length);
+        }
+        return windows[(int) (pos / WINDOW)].slice((int) (pos % WINDOW), length);
+    }
+
+    /**
+     * Return the position of the first \n or \r at or after from, or the
+     * size of the file if there is none
+     */
+    public long nextLineBreak(long from) {
+        for (int k = (int) (from / WINDOW); k < windows.length; k++) {
+            MappedByteBuffer window = windows[k];
+            // do not scan the part shared with the next window twice
+            int end = Math.min(window.limit(), WINDOW);
+            long base = (long) k * WINDOW;
+            for (int i = (int) Math.max(from - base, 0); i < end; i++) {
+                byte b = window.get(i);
+                if (b == '\n' || b == '\r') {
+                    return base + i;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Close the channel. Bytes can still be read through the mapping.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,134 @@
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Leaf text backed by a range of UTF-8 bytes in a MappedFile. Nothing is
+ * decoded until the text is used. ASCII text is read straight from the
+ * mapping; other text is decoded on first use and kept in a soft
+ * reference, so the garbage collector can drop it again under memory
+ * pressure.
+ */
+public final class MappedText implements LeafText {
+    private final MappedFile file;
+    private final long offset;
+    private final int byteLength;
+    private final int length;
+    private final boolean ascii;
+
+    private SoftReference<String> decoded;
+
+    /**
+     * Create text for the byteLength bytes at offset in file, which decode
+     * to length characters (see Document.open for how it is counted).
+     * byteLength must be at most MappedFile.MAX_RANGE. If ascii is true
+     * then every byte is one character.
+     */
+    public MappedText(MappedFile file, long offset, int byteLength, int length,
+            boolean ascii) {
+        if (byteLength > MappedFile.MAX_RANGE) {
+            throw new IllegalArgumentException("Range too long: " + byteLength);
+        }
+        this.file = file;
+        this.offset = offset;
+        this.byteLength = byteLength;
+        this.length = length;
+        this.ascii = ascii;
+    }
+
+    /**
+     * Return the file the text is in
+     */
+    public MappedFile file() {
+        return file;
+    }
+
+    /**
+     * Return the byte offset of the text in the file
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Return the number of bytes the text takes up in the file
+     */
+    public int byteLength() {
+        return byteLength;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int i) {
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("Index out of bounds");
+        }
+        if (ascii) {
+            return (char) file.get(offset + i);
+        }
+        return toString().charAt(i);
+    }
+
+    @Override
+    public LeafText slice(int start, int end) {
+        if (!ascii) {
+            // character and byte offsets differ, let the rope copy instead
+            return null;
+        }
+        return new MappedText(file, offset + start, end - start, end - start, true);
+    }
+
+    @Override
+    public void appendTo(StringBuilder sb, int start, int end) {
+        if (ascii) {
+            for (int i = start; i < end; i++) {
+                sb.append((char) file.get(offset + i));
+            }
+        } else {
+            sb.append(toString(), start, end);
+        }
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dst, int dstOffset) {
+        if (ascii) {
+            for (int i = start; i < end; i++) {
+                dst[dstOffset + i - start] = (char) file.get(offset + i);
+            }
+        } else {
+            toString().getChars(start, end, dst, dstOffset);
+        }
+    }
+
+    @Override
+    public String toString() {
+        SoftReference<String> ref = decoded;
+        String s = ref == null ? null : ref.get();
+        if (s == null) {
+            s = StandardCharsets.UTF_8.decode(file.slice(offset, byteLength)).toString();
+            if (s.length() != length) {
+                s = fit(s);
+            }
+            decoded = new SoftReference<>(s);
+        }
+        return s;
+    }
+
+    // The length is counted from the lead bytes without decoding, which
+    // only matches the decoder on well formed UTF-8. Cut or pad malformed
+    // text with replacement characters so it keeps the length the rope
+    // was built with.
+    private String fit(String s) {
+        if (s.length() > length) {
+            return s.substring(0, length);
+        }
+        StringBuilder sb = new StringBuilder(length).append(s);
+        while (sb.length() < length) {
+            sb.append('\ufffd');
+        }
+        return sb.toString();
+    }
+}
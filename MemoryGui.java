@@ -0,0 +1,169 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A Gui that draws into memory instead of on a terminal, for driving the
+ * editor without one, e.g. in tests or when replaying a trace of keys.
+ * Keys are queued with press and handed out by getKeypress and
+ * waitKeypress. Log lines are dropped.
+ */
+public class MemoryGui implements Gui {
+    private final char[][] cells;
+    private final int width;
+    private final int height;
+    private int cursorX;
+    private int cursorY;
+    private int frames;
+    private final int[] paints;
+
+    private final ArrayDeque<Integer> keys = new ArrayDeque<>();
+
+    /**
+     * Create a screen of width columns and height rows
+     */
+    public MemoryGui(int width, int height) {
+        this.width = width;
+        this.height = height;
+        cells = new char[height][width];
+        paints = new int[height];
+        clear();
+    }
+
+    /**
+     * Queue key as if the user pressed it
+     */
+    public void press(int key) {
+        keys.add(key);
+    }
+
+    /**
+     * Queue every character of text as if the user typed it
+     */
+    public void type(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            keys.add((int) text.charAt(i));
+        }
+    }
+
+    /**
+     * Return the characters shown on row y
+     */
+    public String getRow(int y) {
+        return new String(cells[y]);
+    }
+
+    /**
+     * Return the column of the cursor
+     */
+    public int getCursorX() {
+        return cursorX;
+    }
+
+    /**
+     * Return the row of the cursor
+     */
+    public int getCursorY() {
+        return cursorY;
+    }
+
+    /**
+     * Return the number of times refresh was called
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Return the number of times characters were drawn on row y, counting
+     * each drawString or drawCharacter call once
+     */
+    public int getPaints(int y) {
+        return paints[y];
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void clear() {
+        for (char[] row : cells) {
+            Arrays.fill(row, ' ');
+        }
+    }
+
+    @Override
+    public void refresh() {
+        frames++;
+    }
+
+    @Override
+    public void resize() {
+    }
+
+    @Override
+    public int getScreenHeight() {
+        return height;
+    }
+
+    @Override
+    public int getScreenWidth() {
+        return width;
+    }
+
+    @Override
+    public void setCursorPosition(int x, int y) {
+        cursorX = x;
+        cursorY = y;
+    }
+
+    @Override
+    public void drawCharacter(int x, int y, char c,
+        Color foregroundColor, Color backgroundColor) {
+        if (y >= 0 && y < height) {
+            paints[y]++;
+        }
+        put(x, y, c);
+    }
+
+    @Override
+    public void drawString(int x, int y, CharSequence text,
+        Color foregroundColor, Color backgroundColor) {
+        if (y >= 0 && y < height) {
+            paints[y]++;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            put(x + i, y, text.charAt(i));
+        }
+    }
+
+    private void put(int x, int y, char c) {
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            cells[y][x] = c;
+        }
+    }
+
+    @Override
+    public int getKeypress() {
+        Integer key = keys.poll();
+        return key == null ? 0 : key;
+    }
+
+    /**
+     * Return the next queued key, or EOF_KEY if there is none, since no
+     * one else can press a key
+     */
+    @Override
+    public int waitKeypress() {
+        Integer key = keys.poll();
+        return key == null ? Gui.EOF_KEY : key;
+    }
+
+    @Override
+    public void log(String text) {
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Leaf text stored off the Java heap in a slab of a LeafArena. Only this
+ * handle lives on the heap. Text that fits in Latin-1 is stored as one
+ * byte per character, and other text as two (UTF-16). Slices share the
+ * slab instead of copying.
+ *
+ * <p>Two OffHeapTexts are equal if they hold the same characters, and the
+ * hash is that of the String, so reduce can share equal leaves whichever
+ * way they are held.
+ *
+ * <p>The arena recycles a slab once its handles are unreachable, which
+ * can happen while a method is still reading the buffer it loaded from
+ * the slab. Every read of the buffer is therefore followed by a
+ * reachability fence on the handle.
+ */
+public final class OffHeapText implements LeafText {
+    private final LeafArena.Slab slab;
+    private final int offset;
+    private final int length;
+    private final boolean wide;
+
+    OffHeapText(LeafArena.Slab slab, int offset, int length, boolean wide) {
+        this.slab = slab;
+        this.offset = offset;
+        this.length = length;
+        this.wide = wide;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int i) {
+        try {
+            if (wide) {
+                return slab.buffer.getChar(offset + i * 2);
+            }
+            return (char) (slab.buffer.get(offset + i) & 0xff);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    @Override
+    public LeafText slice(int start, int end) {
+        int width = wide ? 2 : 1;
+        return new OffHeapText(slab, offset + start * width, end - start, wide);
+    }
+
+    @Override
+    public void appendTo(StringBuilder sb, int start, int end) {
+        // charAt fences each read
+        for (int i = start; i < end; i++) {
+            sb.append(charAt(i));
+        }
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dst, int dstOffset) {
+        try {
+            ByteBuffer buffer = slab.buffer;
+            for (int i = start; i < end; i++) {
+                dst[dstOffset + i - start] = wide
+                    ? buffer.getChar(offset + i * 2)
+                    : (char) (buffer.get(offset + i) & 0xff);
+            }
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    /**
+     * Return true if the text is stored as one byte per character, i.e.
+     * in Latin-1
+     */
+    public boolean isLatin1() {
+        return !wide;
+    }
+
+    /**
+     * Return true if every character is ASCII, in which case the bytes
+     * are also the UTF-8 encoding of the text
+     */
+    public boolean isAscii() {
+        if (wide) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = slab.buffer;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(offset + i) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    /**
+     * Write the bytes of the text to out as they are, e.g. when they are
+     * already in the charset being written (see isLatin1 and isAscii)
+     */
+    void writeTo(ChannelWriter out) throws IOException {
+        try {
+            out.write(slab.buffer, offset, wide ? length * 2 : length);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            if (wide) {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = slab.buffer.getChar(offset + i * 2);
+                }
+                return new String(chars);
+            }
+            byte[] bytes = new byte[length];
+            slab.buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OffHeapText)) {
+            return false;
+        }
+        OffHeapText other = (OffHeapText) o;
+        if (other.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (charAt(i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the same hash as a String of these characters would
+     */
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + charAt(i);
+        }
+        return h;
+    }
+}
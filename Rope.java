@@ -1,13 +1,51 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
-public final class Rope {
+public final class Rope implements CharSequence {
     // For leaves: data != null, left == right == null, weight = data.length()
+    // For leaves of Latin-1 text held as one byte per character:
+    // data == null, latin1 != null, left == right == null,
+    // weight = latin1.length
+    // For leaves backed by a LeafText (e.g. OffHeapText, MappedText):
+    // data == null, text != null, left == right == null,
+    // weight = text.length()
     // For internal nodes: data == null, left/right != null, weight = totalWeight(left)
     public final String data;
+    final byte[] latin1;
+    public final LeafText text;
     public final Rope left;
     public final Rope right;
     public final int weight;
 
+    // Cached length of the whole subtree and the height of the tree below
+    // this node (0 for leaves). Both are fixed at construction since ropes
+    // are immutable.
+    private final int length;
+    private final int depth;
+
+    // FIB[n] is the nth Fibonacci number. A rope of depth d is considered
+    // balanced when its length is at least FIB[d + 2] (Boehm et al.)
+    private static final int[] FIB = fibonacci();
+
+    // Hash of the leaves and shape of this rope, worked out on first use
+    // by contentHash. 0 means not yet known.
+    private int hash;
+
+    // Leaf chunking policy. Two adjacent leaves are merged by concat when
+    // one of them is shorter than minLeaf and the result is no longer than
+    // maxLeaf, and insert splices short text into the leaf it lands in as
+    // long as that leaf stays within maxLeaf.
+    private static int minLeaf = 64;
+    private static int maxLeaf = 512;
+
     /**
      * Create leaf Rope from string data
      * Data cannot be null or empty
@@ -17,9 +55,73 @@ public final class Rope {
             throw new IllegalArgumentException("Data cannot be null or empty");
         }
         this.data = data;
+        this.latin1 = null;
+        this.text = null;
         this.left = null;
         this.right = null;
         this.weight = data.length();
+        this.length = weight;
+        this.depth = 0;
+    }
+
+    /**
+     * Create leaf Rope whose characters are held by a LeafText
+     * Text cannot be null or empty
+     */
+    public Rope(LeafText text) {
+        if (text == null || text.length() == 0) {
+            throw new IllegalArgumentException("Text cannot be null or empty");
+        }
+        this.data = null;
+        this.latin1 = null;
+        this.text = text;
+        this.left = null;
+        this.right = null;
+        this.weight = text.length();
+        this.length = weight;
+        this.depth = 0;
+    }
+
+    // Create a leaf of Latin-1 text, one byte per character. The array is
+    // kept, so it must not be changed afterwards.
+    private Rope(byte[] latin1) {
+        this.data = null;
+        this.latin1 = latin1;
+        this.text = null;
+        this.left = null;
+        this.right = null;
+        this.weight = latin1.length;
+        this.length = weight;
+        this.depth = 0;
+    }
+
+    /**
+     * Create a leaf Rope holding the characters of s from start up to but
+     * not including end. If they all fit in Latin-1 (which includes ASCII)
+     * they are held in the node as one byte per character, which can be
+     * copied straight to a file when saving, and otherwise in a String.
+     * The range cannot be empty.
+     */
+    public static Rope compact(CharSequence s, int start, int end) {
+        if (end <= start) {
+            throw new IllegalArgumentException("Data cannot be null or empty");
+        }
+        byte[] b = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c > 0xff) {
+                return new Rope(s.subSequence(start, end).toString());
+            }
+            b[i - start] = (byte) c;
+        }
+        return new Rope(b);
+    }
+
+    /**
+     * Create a leaf Rope holding all of s (see compact(s, start, end))
+     */
+    public static Rope compact(CharSequence s) {
+        return compact(s, 0, s.length());
     }
 
     /**
@@ -32,21 +134,53 @@ public final class Rope {
             throw new IllegalArgumentException("Left and right ropes cannot be null");
         }
         this.data = null;
+        this.latin1 = null;
+        this.text = null;
         this.left = left;
         this.right = right;
-        this.weight = left.totalWeight();
+        this.weight = left.length;
+        this.length = weight + right.length;
+        this.depth = Math.max(left.depth, right.depth) + 1;
     }
 
     /**
-     * Print the rope out. Useful for debugging
-     * Format: (weight data left right)
+     * Return the text of the rope, as required by CharSequence.
+     * Use debugString() to see the tree structure.
      */
     @Override
     public String toString() {
-        String d = (data == null ? "null" : data);
-        String l = (left == null ? "null" : left.toString());
-        String r = (right == null ? "null" : right.toString());
-        return "(" + weight + " " + d + " " + l + " " + r + ")";
+        return collect();
+    }
+
+    /**
+     * Print the rope out. Useful for debugging
+     * Format: (weight data left right)
+     */
+    public String debugString() {
+        // Walk the tree with an explicit stack of nodes still to print and
+        // pieces of text to emit after them, so deep ropes cannot overflow
+        StringBuilder sb = new StringBuilder();
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Object top = stack.pop();
+            if (top instanceof String) {
+                sb.append((String) top);
+                continue;
+            }
+            Rope node = (Rope) top;
+            if (node.isLeaf()) {
+                sb.append("(").append(node.weight).append(" ").append(node.leafString())
+                    .append(" null null)");
+            } else {
+                sb.append("(").append(node.weight).append(" null ");
+                stack.push(")");
+                stack.push(node.right);
+                stack.push(" ");
+                stack.push(node.left);
+            }
+        }
+        return sb.toString();
     }
 
     /**
@@ -54,10 +188,14 @@ public final class Rope {
      * both the left and right ropes
      */
     public int totalWeight() {
-        if (isLeaf()) {
-            return weight;
-        }
-        return weight + right.totalWeight();
+        return length;
+    }
+
+    /**
+     * Return the height of the rope. A leaf has depth 0.
+     */
+    public int depth() {
+        return depth;
     }
 
     /**
@@ -67,16 +205,259 @@ public final class Rope {
         return left == null && right == null;
     }
 
+    /**
+     * Set the leaf chunking policy used by concat and insert.
+     * Leaves shorter than min are merged with their neighbour, and leaves
+     * are only grown up to max characters. Setting max to 0 turns
+     * chunking off.
+     */
+    public static void setLeafSize(int min, int max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Leaf size must satisfy 0 <= min <= max");
+        }
+        minLeaf = min;
+        maxLeaf = max;
+    }
+
+    /**
+     * Return the smallest leaf size that concat leaves unmerged
+     */
+    public static int getMinLeafSize() {
+        return minLeaf;
+    }
+
+    /**
+     * Return the largest leaf size that concat and insert will build
+     */
+    public static int getMaxLeafSize() {
+        return maxLeaf;
+    }
+
+    /**
+     * Return true if this rope is shallow enough for its length, i.e.
+     * its length is at least the (depth + 2)th Fibonacci number
+     */
+    public boolean isBalanced() {
+        return isBalanced(length, depth);
+    }
+
+    private static boolean isBalanced(int length, int depth) {
+        return depth + 2 < FIB.length && length >= FIB[depth + 2];
+    }
+
     /**
      * Concatenate this rope with another by creating a parent
      * rope node and adding this and other as children.
+     * If the new node would be too deep for its length, the taller rope
+     * is rotated instead so that the result stays balanced.
+     * Two leaves that are small enough are merged into a single leaf.
      * Concatenating a null rope has no effect.
      */
     public Rope concat(Rope other) {
         if (other == null) {
             return this;
         }
-        return new Rope(this, other);
+        if (isInlineLeaf() && other.isInlineLeaf() && canMerge(length, other.length)) {
+            return mergeLeaves(this, other);
+        }
+        return join(this, other);
+    }
+
+    // Return true if this is a leaf whose text is held on the heap, in a
+    // String or in bytes. Other leaves are not merged, so that text in a
+    // LeafArena or a mapped file stays there instead of being copied onto
+    // the heap.
+    boolean isInlineLeaf() {
+        return data != null || latin1 != null;
+    }
+
+    // helper function for concat. Return one leaf holding the text of leaf
+    // a followed by that of leaf b. Two byte leaves are copied byte for
+    // byte into a byte leaf, and other leaves are copied into a String.
+    private static Rope mergeLeaves(Rope a, Rope b) {
+        if (a.latin1 != null && b.latin1 != null) {
+            byte[] merged = Arrays.copyOf(a.latin1, a.length + b.length);
+            System.arraycopy(b.latin1, 0, merged, a.length, b.length);
+            return new Rope(merged);
+        }
+        StringBuilder sb = new StringBuilder(a.length + b.length);
+        a.leafAppendTo(sb, 0, a.length);
+        b.leafAppendTo(sb, 0, b.length);
+        return new Rope(sb.toString());
+    }
+
+    // Return true if leaves of length a and b should become one leaf
+    private static boolean canMerge(int a, int b) {
+        return (a < minLeaf || b < minLeaf) && a + b <= maxLeaf;
+    }
+
+    /**
+     * Rebuild this rope as a balanced tree over the same leaves.
+     * Returns this rope if it is already balanced.
+     */
+    public Rope balance() {
+        if (isBalanced()) {
+            return this;
+        }
+        ArrayList<Rope> leaves = new ArrayList<>();
+        ArrayDeque<Rope> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Rope node = stack.pop();
+            if (node.isLeaf()) {
+                leaves.add(node);
+            } else {
+                stack.push(node.right);
+                stack.push(node.left);
+            }
+        }
+        return build(leaves, 0, leaves.size());
+    }
+
+    /**
+     * Build a balanced rope holding text, split into leaves of leafSize
+     * characters (the last leaf may be shorter), in O(n). Surrogate pairs
+     * are never split between leaves. Returns null if text is empty.
+     */
+    public static Rope of(CharSequence text, int leafSize) {
+        if (text == null) {
+            throw new IllegalArgumentException("Text cannot be null");
+        }
+        if (leafSize < 2) {
+            throw new IllegalArgumentException("Leaf size must be at least 2");
+        }
+        int n = text.length();
+        if (n == 0) {
+            return null;
+        }
+        ArrayList<Rope> leaves = new ArrayList<>(n / leafSize + 1);
+        for (int i = 0; i < n;) {
+            int end = Math.min(i + leafSize, n);
+            if (end < n && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            leaves.add(new Rope(text.subSequence(i, end).toString()));
+            i = end;
+        }
+        return build(leaves, 0, leaves.size());
+    }
+
+    /**
+     * Build a balanced rope holding text, split into leaves of the
+     * largest leaf size. Returns null if text is empty.
+     */
+    public static Rope of(CharSequence text) {
+        return of(text, maxLeaf);
+    }
+
+    /**
+     * Build a balanced rope over leaves, in order, in O(n). Returns null
+     * if there are no leaves.
+     */
+    public static Rope of(List<Rope> leaves) {
+        if (leaves.isEmpty()) {
+            return null;
+        }
+        return build(leaves, 0, leaves.size());
+    }
+
+    // helper function for balance and of, joins leaves[lo, hi) into a tree of
+    // minimal depth
+    private static Rope build(List<Rope> leaves, int lo, int hi) {
+        if (hi - lo == 1) {
+            return leaves.get(lo);
+        }
+        int mid = (lo + hi + 1) / 2;
+        return new Rope(build(leaves, lo, mid), build(leaves, mid, hi));
+    }
+
+    // Join two ropes, either of which may be null. A plain parent node is
+    // used whenever it is balanced or the heights are within one of each
+    // other. Otherwise the shorter rope is joined into the spine of the
+    // taller one and the path is rebalanced with AVL rotations.
+    private static Rope join(Rope a, Rope b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        int depth = Math.max(a.depth, b.depth) + 1;
+        if (Math.abs(a.depth - b.depth) <= 1
+                || isBalanced(a.length + b.length, depth)) {
+            return new Rope(a, b);
+        }
+        if (a.depth > b.depth) {
+            return joinRight(a, b);
+        }
+        return joinLeft(a, b);
+    }
+
+    // helper function for join when a is more than one level taller than b
+    private static Rope joinRight(Rope a, Rope b) {
+        Rope l = a.left;
+        Rope c = a.right;
+        Rope t;
+        if (c.depth <= b.depth + 1) {
+            t = new Rope(c, b);
+        } else {
+            t = joinRight(c, b);
+        }
+        if (t.depth <= l.depth + 1) {
+            return new Rope(l, t);
+        }
+        if (t.left.depth > t.right.depth) {
+            t = rotateRight(t);
+        }
+        return rotateLeft(new Rope(l, t));
+    }
+
+    // helper function for join when b is more than one level taller than a
+    private static Rope joinLeft(Rope a, Rope b) {
+        Rope c = b.left;
+        Rope r = b.right;
+        Rope t;
+        if (c.depth <= a.depth + 1) {
+            t = new Rope(a, c);
+        } else {
+            t = joinLeft(a, c);
+        }
+        if (t.depth <= r.depth + 1) {
+            return new Rope(t, r);
+        }
+        if (t.right.depth > t.left.depth) {
+            t = rotateLeft(t);
+        }
+        return rotateRight(new Rope(t, r));
+    }
+
+    //     n                r
+    //    / \              / \
+    //   a   r     =>     n   c
+    //      / \          / \
+    //     b   c        a   b
+    private static Rope rotateLeft(Rope n) {
+        return new Rope(new Rope(n.left, n.right.left), n.right.right);
+    }
+
+    //       n            l
+    //      / \          / \
+    //     l   c   =>   a   n
+    //    / \              / \
+    //   a   b            b   c
+    private static Rope rotateRight(Rope n) {
+        return new Rope(n.left.left, new Rope(n.left.right, n.right));
+    }
+
+    // helper function to fill in FIB, up to the largest value that fits
+    // in an int
+    private static int[] fibonacci() {
+        int[] fib = new int[47];
+        fib[1] = 1;
+        for (int i = 2; i < fib.length; i++) {
+            fib[i] = fib[i - 1] + fib[i - 2];
+        }
+        return fib;
     }
 
     /**
@@ -94,30 +475,227 @@ public final class Rope {
     /**
      * Find the char at a particular node
      */
+    @Override
     public char charAt(int i) {
-        int total = totalWeight();
+        int total = length;
         if (i < 0 || i >= total) {
             throw new IndexOutOfBoundsException("Index out of bounds");
         }
         if (isLeaf()) {
+            return leafCharAt(i);
+        }
+        // Bounds were checked once above, so walk down without recursing.
+        // Nothing is cached in the node, which may be shared between
+        // threads: to scan a rope in order, e.g. with java.util.regex, use
+        // a RopeCursor, which remembers the leaf it is in.
+        Rope node = this;
+        int start = 0;
+        while (!node.isLeaf()) {
+            if (i - start < node.weight) {
+                node = node.left;
+            } else {
+                start += node.weight;
+                node = node.right;
+            }
+        }
+        return node.leafCharAt(i - start);
+    }
+
+    // Return the character at index i of this leaf
+    char leafCharAt(int i) {
+        if (data != null) {
             return data.charAt(i);
         }
-        if (i < weight) {
-            return left.charAt(i);
+        if (latin1 != null) {
+            return (char) (latin1[i] & 0xff);
+        }
+        return text.charAt(i);
+    }
+
+    // Return the characters of this leaf as a String
+    String leafString() {
+        if (data != null) {
+            return data;
+        }
+        if (latin1 != null) {
+            return new String(latin1, StandardCharsets.ISO_8859_1);
+        }
+        return text.toString();
+    }
+
+    // Append the characters of this leaf from start up to but not
+    // including end to sb, without making a String of them first
+    private void leafAppendTo(StringBuilder sb, int start, int end) {
+        if (data != null) {
+            sb.append(data, start, end);
+        } else if (latin1 != null) {
+            for (int i = start; i < end; i++) {
+                sb.append((char) (latin1[i] & 0xff));
+            }
+        } else {
+            text.appendTo(sb, start, end);
+        }
+    }
+
+    // Copy the characters of this leaf from start up to but not including
+    // end into dst at offset
+    private void leafGetChars(int start, int end, char[] dst, int offset) {
+        if (data != null) {
+            data.getChars(start, end, dst, offset);
+        } else if (latin1 != null) {
+            for (int i = start; i < end; i++) {
+                dst[offset + i - start] = (char) (latin1[i] & 0xff);
+            }
         } else {
-            return right.charAt(i - weight);
+            text.getChars(start, end, dst, offset);
         }
     }
 
+    // Return a leaf holding the characters of this leaf from start up to
+    // but not including end. LeafText leaves are sliced without copying
+    // where the LeafText allows it.
+    private Rope leafSlice(int start, int end) {
+        if (data != null) {
+            return new Rope(data.substring(start, end));
+        }
+        if (latin1 != null) {
+            return new Rope(Arrays.copyOfRange(latin1, start, end));
+        }
+        LeafText sub = text.slice(start, end);
+        if (sub != null) {
+            return new Rope(sub);
+        }
+        return new Rope(text.toString().substring(start, end));
+    }
+
+    /**
+     * Return the number of characters in the rope, same as totalWeight()
+     */
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Return the characters from start up to but not including end.
+     * The result shares nodes with this rope (see subrope) instead of
+     * copying the text.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        Rope sub = subrope(start, end);
+        if (sub == null) {
+            return "";
+        }
+        return sub;
+    }
+
     /**
      * Return this node as a string by accumulating the data
      * from left and right ropes.
      */
     public String collect() {
         if (isLeaf()) {
-            return data;
+            return leafString();
+        }
+        StringBuilder sb = new StringBuilder(length);
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Append the text of this rope to a StringBuilder, leaf by leaf
+     */
+    public void appendTo(StringBuilder sb) {
+        Iterator<Rope> it = leaves();
+        while (it.hasNext()) {
+            Rope leaf = it.next();
+            leaf.leafAppendTo(sb, 0, leaf.length);
+        }
+    }
+
+    /**
+     * Stream the text of this rope to out, leaf by leaf, without building
+     * an intermediate string. Any Writer, PrintStream or CharBuffer can be
+     * used as out. String leaves are appended as they are, and the text of
+     * other leaves is copied through one reused buffer of chars.
+     */
+    public void appendTo(Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            appendTo((StringBuilder) out);
+            return;
+        }
+        Writer writer = out instanceof Writer ? (Writer) out : null;
+        char[] chunk = null;
+        CharBuffer view = null;
+        Iterator<Rope> it = leaves();
+        while (it.hasNext()) {
+            Rope leaf = it.next();
+            if (leaf.data != null) {
+                out.append(leaf.data);
+                continue;
+            }
+            if (chunk == null) {
+                chunk = new char[Math.min(length, APPEND_CHUNK)];
+                view = CharBuffer.wrap(chunk);
+            }
+            for (int i = 0; i < leaf.length; i += chunk.length) {
+                int n = Math.min(chunk.length, leaf.length - i);
+                leaf.leafGetChars(i, i + n, chunk, 0);
+                if (writer != null) {
+                    writer.write(chunk, 0, n);
+                } else {
+                    view.clear().limit(n);
+                    out.append(view);
+                }
+            }
+        }
+    }
+
+    // Size of the buffer appendTo(Appendable) copies leaf text through
+    private static final int APPEND_CHUNK = 1024;
+
+    /**
+     * Return an iterator over the leaves of this rope from left to right.
+     * The tree is walked with an explicit stack, so this works on ropes of
+     * any depth.
+     */
+    public Iterator<Rope> leaves() {
+        return new LeafIterator(this);
+    }
+
+    // Iterator for leaves(). The stack holds the right subtrees that are
+    // still to be visited.
+    private static final class LeafIterator implements Iterator<Rope> {
+        private final ArrayDeque<Rope> stack = new ArrayDeque<>();
+        private Rope next;
+
+        LeafIterator(Rope root) {
+            next = leftmost(root);
+        }
+
+        private Rope leftmost(Rope node) {
+            while (!node.isLeaf()) {
+                stack.push(node.right);
+                node = node.left;
+            }
+            return node;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Rope next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Rope leaf = next;
+            next = stack.isEmpty() ? null : leftmost(stack.pop());
+            return leaf;
         }
-        return left.collect() + right.collect();
     }
 
     /**
@@ -126,7 +704,7 @@ public final class Rope {
      * index 2 would return the rope "refly"
      */
     public Rope tail(int i) {
-        int total = totalWeight();
+        int total = length;
         if (i < 0 || i > total) {
             throw new IndexOutOfBoundsException("Index out of bounds");
         }
@@ -139,11 +717,7 @@ public final class Rope {
         }
 
         if (isLeaf()) {
-            String sub = data.substring(i);
-            if (sub.length() == 0) {
-                return null;
-            }
-            return new Rope(sub);
+            return leafSlice(i, total);
         }
 
         if (i < weight) {
@@ -151,7 +725,7 @@ public final class Rope {
             if (newLeft == null) {
                 return right;           // share right
             }
-            return new Rope(newLeft, right);
+            return join(newLeft, right);
         } else if (i == weight) {
             return right;
         } else {
@@ -165,7 +739,7 @@ public final class Rope {
      * index 2 would return the rope "fi"
      */
     public Rope head(int i) {
-        int total = totalWeight();
+        int total = length;
         if (i < 0 || i > total) {
             throw new IndexOutOfBoundsException("Index out of bounds");
         }
@@ -177,11 +751,7 @@ public final class Rope {
         }
 
         if (isLeaf()) {
-            String sub = data.substring(0, i);
-            if (sub.length() == 0) {
-                return null;
-            }
-            return new Rope(sub);
+            return leafSlice(0, i);
         }
 
         if (i < weight) {
@@ -194,7 +764,7 @@ public final class Rope {
             if (rightHead == null) {
                 return left;
             }
-            return new Rope(left, rightHead);
+            return join(left, rightHead);
         }
     }
 
@@ -203,7 +773,7 @@ public final class Rope {
      * This is a wrapper around the head and tail functions.
      */
     public Rope subrope(int start, int end) {
-        int total = totalWeight();
+        int total = length;
         if (start < 0 || end < start || end > total) {
             throw new IndexOutOfBoundsException("Index out of bounds");
         }
@@ -225,17 +795,28 @@ public final class Rope {
      * and it gets deleted.
      */
     public Rope delete(int i) {
-        int total = totalWeight();
+        int total = length;
         if (i < 0 || i >= total) {
             throw new IndexOutOfBoundsException("Index out of bounds");
         }
 
         if (isLeaf()) {
-            String newData = data.substring(0, i) + data.substring(i + 1);
-            if (newData.length() == 0) {
+            if (total == 1) {
                 return null;
             }
-            return new Rope(newData);
+            if (latin1 != null) {
+                byte[] b = new byte[total - 1];
+                System.arraycopy(latin1, 0, b, 0, i);
+                System.arraycopy(latin1, i + 1, b, i, b.length - i);
+                return new Rope(b);
+            }
+            if (data == null) {
+                // keep both halves in the LeafText if they can be sliced
+                Rope before = i == 0 ? null : leafSlice(0, i);
+                Rope after = i == total - 1 ? null : leafSlice(i + 1, total);
+                return join(before, after);
+            }
+            return new Rope(data.substring(0, i) + data.substring(i + 1));
         }
 
         if (i < weight) {
@@ -243,13 +824,13 @@ public final class Rope {
             if (newLeft == null) {
                 return right;           // share right
             }
-            return new Rope(newLeft, right);
+            return join(newLeft, right);
         } else {
             Rope newRight = right.delete(i - weight);
             if (newRight == null) {
                 return left;            // share left
             }
-            return new Rope(left, newRight);
+            return join(left, newRight);
         }
     }
 
@@ -257,13 +838,19 @@ public final class Rope {
      * Insert a rope at index i
      */
     public Rope insert(Rope other, int i) {
-        int total = totalWeight();
+        int total = length;
         if (i < 0 || i > total) {
             throw new IndexOutOfBoundsException("Index out of bounds");
         }
         if (other == null) {
             return this;
         }
+        if (other.isLeaf()) {
+            Rope spliced = splice(this, i, other);
+            if (spliced != null) {
+                return spliced;
+            }
+        }
 
         Rope leftPart = head(i);
         Rope rightPart = tail(i);
@@ -282,29 +869,176 @@ public final class Rope {
         return result;
     }
 
+    // helper function for insert. Insert the text of leaf s at index i of
+    // the leaf that i falls in, copying the path to it. Returns null if
+    // that leaf would grow past maxLeaf, or if its text is not held on the
+    // heap: as in concat, leaves in a LeafArena or a mapped file are kept,
+    // and insert slices them around s instead of copying them. Byte leaves
+    // stay byte leaves as long as s fits in Latin-1 too.
+    private static Rope splice(Rope node, int i, Rope s) {
+        if (node.isLeaf()) {
+            int n = node.length;
+            if (n + s.length > maxLeaf || !node.isInlineLeaf()) {
+                return null;
+            }
+            if (node.latin1 != null) {
+                byte[] b = new byte[n + s.length];
+                if (s.leafGetLatin1(b, i)) {
+                    System.arraycopy(node.latin1, 0, b, 0, i);
+                    System.arraycopy(node.latin1, i, b, i + s.length, n - i);
+                    return new Rope(b);
+                }
+            }
+            StringBuilder sb = new StringBuilder(n + s.length);
+            node.leafAppendTo(sb, 0, i);
+            s.leafAppendTo(sb, 0, s.length);
+            node.leafAppendTo(sb, i, n);
+            return new Rope(sb.toString());
+        }
+        if (i <= node.weight) {
+            // at a leaf boundary prefer the end of the left leaf so that
+            // typing at the end of a line keeps filling the same leaf
+            Rope newLeft = splice(node.left, i, s);
+            if (newLeft != null) {
+                return new Rope(newLeft, node.right);
+            }
+            if (i < node.weight) {
+                return null;
+            }
+        }
+        Rope newRight = splice(node.right, i - node.weight, s);
+        if (newRight == null) {
+            return null;
+        }
+        return new Rope(node.left, newRight);
+    }
+
     /**
-     * Reduce the rope to its most space efficient form
+     * Reduce the rope to its most space efficient form, in which equal
+     * leaves and equal subtrees are the same object. Returns this rope if
+     * it is already in that form.
      */
     public Rope reduce() {
-        return reduceString(this, new HashMap<String, Rope>());
+        return reduce(new RopeInterner());
     }
 
-    // helper function for reduce
-    private static Rope reduceString(Rope node, HashMap<String, Rope> map) {
-        if (node == null) {
-            return null;
+    /**
+     * Reduce the rope like reduce(), but share leaves and subtrees with
+     * every rope reduced with the same interner, e.g. all lines of a
+     * document. Subtrees that are already in interner are not visited
+     * again, and nodes whose children did not change are kept.
+     */
+    public Rope reduce(RopeInterner interner) {
+        // Walk the tree without recursing. A node is pushed again with
+        // JOIN above it once its children are on the stack, and joined
+        // from the two reduced children on top of results.
+        ArrayDeque<Object> todo = new ArrayDeque<>();
+        ArrayDeque<Rope> results = new ArrayDeque<>();
+        todo.push(this);
+        while (!todo.isEmpty()) {
+            Object top = todo.pop();
+            if (top == JOIN) {
+                Rope node = (Rope) todo.pop();
+                Rope newRight = results.pop();
+                Rope newLeft = results.pop();
+                results.push(interner.intern(node, newLeft, newRight));
+                continue;
+            }
+            Rope node = (Rope) top;
+            if (node.isLeaf()) {
+                results.push(interner.intern(node, null, null));
+            } else if (interner.contains(node)) {
+                results.push(node);
+            } else {
+                todo.push(node);
+                todo.push(JOIN);
+                todo.push(node.right);
+                todo.push(node.left);
+            }
         }
-        if (node.isLeaf()) {
-            Rope exist = map.get(node.data);
-            if (exist != null) {
-                return exist;
+        return results.pop();
+    }
+
+    // helper function for splice. Copy the characters of this leaf into
+    // dst at offset as Latin-1. Returns false if one of them does not fit
+    // in a byte, in which case dst is partly written.
+    private boolean leafGetLatin1(byte[] dst, int offset) {
+        if (latin1 != null) {
+            System.arraycopy(latin1, 0, dst, offset, length);
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = leafCharAt(i);
+            if (c > 0xff) {
+                return false;
+            }
+            dst[offset + i] = (byte) c;
+        }
+        return true;
+    }
+
+    // Marks a node in reduce whose children have been pushed
+    private static final Object JOIN = new Object();
+
+    /**
+     * Return a hash of the leaves of this rope and the shape of the tree
+     * over them, cached in the node. Leaves held in a String, in bytes or
+     * in an OffHeapText hash their text, and other leaves use the hashCode
+     * of their LeafText, which for a MappedText is that of the object, so
+     * that it is not decoded. Ropes with the same text but a different
+     * shape usually have different hashes.
+     */
+    int contentHash() {
+        if (hash != 0) {
+            return hash;
+        }
+        // Fill in the hashes of the nodes below first, without recursing
+        // and skipping subtrees that already have one
+        ArrayDeque<Rope> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Rope node = stack.peek();
+            if (node.isLeaf()) {
+                node.hash = leafHash(node);
+                stack.pop();
+            } else if (node.left.hash == 0) {
+                stack.push(node.left);
+            } else if (node.right.hash == 0) {
+                stack.push(node.right);
             } else {
-                map.put(node.data, node);
-                return node;
+                node.hash = nodeHash(node.left, node.right);
+                stack.pop();
             }
         }
-        Rope newLeft = reduceString(node.left, map);
-        Rope newRight = reduceString(node.right, map);
-        return new Rope(newLeft, newRight);
+        return hash;
+    }
+
+    // Return true if contentHash has been worked out for this node
+    boolean hasContentHash() {
+        return hash != 0;
+    }
+
+    // Return the hash of leaf, never 0
+    private static int leafHash(Rope leaf) {
+        int h;
+        if (leaf.data != null) {
+            h = leaf.data.hashCode();
+        } else if (leaf.latin1 != null) {
+            // the same hash as a String of these characters
+            h = 0;
+            for (byte b : leaf.latin1) {
+                h = 31 * h + (b & 0xff);
+            }
+        } else {
+            h = leaf.text.hashCode();
+        }
+        return h != 0 ? h : 1;
+    }
+
+    // Return the hash of a node over left and right, never 0
+    static int nodeHash(Rope left, Rope right) {
+        int h = left.contentHash() * 31 + right.contentHash();
+        h ^= h >>> 16;
+        return h != 0 ? h : 1;
     }
 }
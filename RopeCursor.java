@@ -0,0 +1,203 @@
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor that walks the characters of a rope forwards or backwards.
+ * The cursor remembers the path from the root to the leaf it is in, so
+ * stepping to the next or previous character is O(1) amortized instead of
+ * the O(log n) descent that charAt does for every index.
+ *
+ * <p>The position of the cursor is the index of the character that next()
+ * would return, from 0 up to and including the length of the rope.
+ *
+ * <p>A cursor is also a CharSequence over the whole rope whose charAt
+ * moves the cursor, so scanning it in order (e.g. with java.util.regex)
+ * only descends from the root when it leaves the current leaf. Unlike the
+ * rope, a cursor must not be shared between threads.
+ */
+public class RopeCursor implements CharSequence {
+    private final Rope root;
+
+    // path[0] is the root and path[top] is the current leaf.
+    // wentRight[k] is true if path[k + 1] is the right child of path[k]
+    private final Rope[] path;
+    private final boolean[] wentRight;
+    private int top;
+
+    // index of the first character of the current leaf in the rope
+    private int leafStart;
+    // index of the cursor inside the current leaf
+    private int offset;
+
+    /**
+     * Create a cursor over rope at index i
+     */
+    public RopeCursor(Rope rope, int i) {
+        if (rope == null) {
+            throw new IllegalArgumentException("Rope cannot be null");
+        }
+        root = rope;
+        path = new Rope[rope.depth() + 1];
+        wentRight = new boolean[rope.depth() + 1];
+        seek(i);
+    }
+
+    /**
+     * Move the cursor to index i
+     */
+    public void seek(int i) {
+        if (i < 0 || i > root.totalWeight()) {
+            throw new IndexOutOfBoundsException("Index out of bounds");
+        }
+        Rope node = root;
+        top = 0;
+        leafStart = 0;
+        while (!node.isLeaf()) {
+            path[top] = node;
+            if (i < node.weight) {
+                wentRight[top] = false;
+                node = node.left;
+            } else {
+                wentRight[top] = true;
+                i -= node.weight;
+                leafStart += node.weight;
+                node = node.right;
+            }
+            top++;
+        }
+        path[top] = node;
+        offset = i;
+    }
+
+    /**
+     * Return the index of the character that next() would return
+     */
+    public int position() {
+        return leafStart + offset;
+    }
+
+    /**
+     * Return true if there is a character after the cursor
+     */
+    public boolean hasNext() {
+        return position() < root.totalWeight();
+    }
+
+    /**
+     * Return true if there is a character before the cursor
+     */
+    public boolean hasPrevious() {
+        return position() > 0;
+    }
+
+    /**
+     * Return the character after the cursor and move past it
+     */
+    public char next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (offset == path[top].totalWeight()) {
+            nextLeaf();
+        }
+        return path[top].leafCharAt(offset++);
+    }
+
+    /**
+     * Return the character before the cursor and move back over it
+     */
+    public char previous() {
+        if (!hasPrevious()) {
+            throw new NoSuchElementException();
+        }
+        if (offset == 0) {
+            previousLeaf();
+        }
+        return path[top].leafCharAt(--offset);
+    }
+
+    // Move to the start of the leaf after the current one
+    private void nextLeaf() {
+        leafStart += path[top].totalWeight();
+        int k = top - 1;
+        while (wentRight[k]) {
+            k--;
+        }
+        wentRight[k] = true;
+        Rope node = path[k].right;
+        top = k + 1;
+        while (!node.isLeaf()) {
+            path[top] = node;
+            wentRight[top] = false;
+            node = node.left;
+            top++;
+        }
+        path[top] = node;
+        offset = 0;
+    }
+
+    // Move to the end of the leaf before the current one
+    private void previousLeaf() {
+        int k = top - 1;
+        while (!wentRight[k]) {
+            k--;
+        }
+        wentRight[k] = false;
+        Rope node = path[k].left;
+        top = k + 1;
+        while (!node.isLeaf()) {
+            path[top] = node;
+            wentRight[top] = true;
+            node = node.right;
+            top++;
+        }
+        path[top] = node;
+        offset = node.totalWeight();
+        leafStart -= offset;
+    }
+
+    /**
+     * Return the length of the rope
+     */
+    @Override
+    public int length() {
+        return root.totalWeight();
+    }
+
+    /**
+     * Return the character at index i of the rope, moving the cursor to i
+     */
+    @Override
+    public char charAt(int i) {
+        if (i < 0 || i >= root.totalWeight()) {
+            throw new IndexOutOfBoundsException("Index out of bounds");
+        }
+        int j = i - leafStart;
+        int leafLength = path[top].totalWeight();
+        if (j == leafLength) {
+            nextLeaf();
+            j = 0;
+        } else if (j < 0 || j > leafLength) {
+            seek(i);
+            j = offset;
+        }
+        offset = j;
+        return path[top].leafCharAt(j);
+    }
+
+    /**
+     * Return the characters of the rope from start up to but not
+     * including end (see Rope.subSequence)
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return root.subSequence(start, end);
+    }
+
+    /**
+     * Return the text of the rope
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
@@ -0,0 +1,165 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * A table of rope nodes used by Rope.reduce to share equal leaves and
+ * subtrees (hash consing). Every node in the table is the one copy of its
+ * content, and its children are in the table too, so two nodes are equal
+ * exactly when their children are the same objects. That makes looking
+ * up a node O(1) however big its subtree is.
+ *
+ * <p>Nodes are held through weak references, so the table does not keep
+ * text alive that no rope uses any more. It is not thread safe.
+ */
+public final class RopeInterner {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // A node in the table, chained with the others in its bucket
+    private static final class Entry extends WeakReference<Rope> {
+        final int hash;
+        Entry next;
+
+        Entry(Rope rope, int hash, Entry next, ReferenceQueue<Rope> queue) {
+            super(rope, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size;
+
+    // Entries whose nodes were collected, to be removed from the table
+    private final ReferenceQueue<Rope> queue = new ReferenceQueue<>();
+
+    /**
+     * Return the number of nodes in the table
+     */
+    public int size() {
+        expunge();
+        return size;
+    }
+
+    /**
+     * Return true if node itself is in the table
+     */
+    boolean contains(Rope node) {
+        if (!node.hasContentHash()) {
+            return false;
+        }
+        int hash = node.contentHash();
+        for (Entry e = table[indexFor(hash)]; e != null; e = e.next) {
+            if (e.hash == hash && e.get() == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the node in the table that equals node with its children
+     * replaced by left and right, which must be in the table already.
+     * If there is none, node is added and returned, or a new node over
+     * left and right if they are not node's children. For a leaf, left
+     * and right are ignored.
+     */
+    Rope intern(Rope node, Rope left, Rope right) {
+        expunge();
+        boolean leaf = node.isLeaf();
+        int hash = leaf ? node.contentHash() : Rope.nodeHash(left, right);
+        int index = indexFor(hash);
+        for (Entry e = table[index]; e != null; e = e.next) {
+            if (e.hash != hash) {
+                continue;
+            }
+            Rope r = e.get();
+            if (r != null && (leaf ? sameLeaf(r, node) : r.left == left && r.right == right)) {
+                return r;
+            }
+        }
+        Rope result = leaf || (node.left == left && node.right == right)
+            ? node : new Rope(left, right);
+        // cache the hash of every node in the table (O(1) here, since the
+        // children have theirs), so a node without one is not in the table
+        result.contentHash();
+        table[index] = new Entry(result, hash, table[index], queue);
+        if (++size > table.length * 3 / 4) {
+            resize();
+        }
+        return result;
+    }
+
+    // Return true if leaves a and b hold the same text. Text held on the
+    // heap is compared by content, whether it is in a String or in bytes.
+    // LeafTexts are compared with equals, which compares OffHeapTexts by
+    // content, while a MappedText is only equal to itself and is never
+    // decoded here.
+    private static boolean sameLeaf(Rope a, Rope b) {
+        if (a == b) {
+            return true;
+        }
+        if (!a.isLeaf()) {
+            return false;
+        }
+        if (a.data != null && b.data != null) {
+            return a.data.equals(b.data);
+        }
+        if (a.latin1 != null && b.latin1 != null) {
+            return Arrays.equals(a.latin1, b.latin1);
+        }
+        if (!a.isInlineLeaf() || !b.isInlineLeaf()) {
+            return a.text != null && a.text.equals(b.text);
+        }
+        int n = a.length();
+        if (b.length() != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (a.leafCharAt(i) != b.leafCharAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexFor(int hash) {
+        return hash & (table.length - 1);
+    }
+
+    // Double the table
+    private void resize() {
+        Entry[] old = table;
+        table = new Entry[old.length * 2];
+        for (Entry head : old) {
+            Entry e = head;
+            while (e != null) {
+                Entry next = e.next;
+                int index = indexFor(e.hash);
+                e.next = table[index];
+                table[index] = e;
+                e = next;
+            }
+        }
+    }
+
+    // Remove the entries of nodes that were collected
+    private void expunge() {
+        for (Object ref; (ref = queue.poll()) != null;) {
+            Entry dead = (Entry) ref;
+            int index = indexFor(dead.hash);
+            Entry prev = null;
+            for (Entry e = table[index]; e != null; prev = e, e = e.next) {
+                if (e == dead) {
+                    if (prev == null) {
+                        table[index] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    size--;
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+import com.googlecode.lanterna.TextCharacter;
+import com.googlecode.lanterna.TextColor;
+import com.googlecode.lanterna.input.KeyStroke;
+import com.googlecode.lanterna.input.KeyType;
+import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.TerminalPosition;
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.screen.Screen;
+import com.googlecode.lanterna.screen.TerminalScreen;
+import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
+import com.googlecode.lanterna.terminal.Terminal;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A Gui on the terminal, drawn with the Lanterna library. Keys are read
+ * on a background thread, so waiting for one does not use any CPU.
+ */
+public class TerminalGui implements Gui {
+    private static DefaultTerminalFactory defaultTerminalFactory
+        = new DefaultTerminalFactory();
+
+    private Terminal terminal;
+    private Screen screen;
+    private TextGraphics graphics;
+    private FileOutputStream logfs;
+
+    /**
+    * Creates a Gui that occupies the whole screen.
+    */
+    public TerminalGui() {
+        try {
+            terminal = defaultTerminalFactory.createTerminal();
+            screen = new TerminalScreen(terminal);
+            graphics = screen.newTextGraphics();
+            logfs = new FileOutputStream("LOG.txt");
+        } catch (Exception e) {
+            System.err.println("Could not create GUI");
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Start terminal drawing mode
+     */
+    @Override
+    public void start() {
+        try {
+            terminal.setCursorVisible(true);
+            screen.clear();
+            screen.startScreen();
+            startInput();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Stop terminal drawing mode and restore normal terminal
+     */
+    @Override
+    public void stop() {
+        try {
+            terminal.setCursorVisible(true);
+            screen.stopScreen();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+
+    /**
+    * Clear the in memory screen. This not not shown untill you call refresh
+    */
+    @Override
+    public void clear() {
+        try {
+            screen.clear();
+        } catch (Exception e) {
+            System.err.println("Could not clear screen");
+            System.exit(-1);
+        }
+    }
+
+    /**
+    * Refresh the screen so that all the screen clears, text and lines you
+    * have drawn shows up on the screen
+    */
+    @Override
+    public void refresh() {
+        try {
+            screen.refresh();
+        } catch (Exception e) {
+            System.err.println("Could not refresh GUI");
+            System.exit(-1);
+        }
+    }
+
+    /**
+    * Pick up a new terminal size after the user resized the window. The
+    * screen sizes only change when this is called.
+    */
+    @Override
+    public void resize() {
+        screen.doResizeIfNecessary();
+    }
+
+    /**
+    * The Gui takes over the whole screen. This returns the height in an integer
+    * number of rows of the screen
+    */
+    @Override
+    public int getScreenHeight() {
+        return screen.getTerminalSize().getRows();
+    }
+
+    /**
+    * The Gui takes over the whole screen. This returns the height in an integer
+    * number of columns of the screen
+    */
+    @Override
+    public int getScreenWidth() {
+        return screen.getTerminalSize().getColumns();
+    }
+
+    /**
+    * Set the cursor position
+    */
+    @Override
+    public void setCursorPosition(int x, int y) {
+        try {
+            screen.setCursorPosition(new TerminalPosition(x, y));
+        } catch (Exception e) {
+            assert (false);
+        }
+    }
+
+    private static final Color[] COLORS = Color.values();
+
+    // The Lanterna color for each Color, by ordinal
+    private static final TextColor[] TEXT_COLORS = {
+        TextColor.ANSI.WHITE,
+        TextColor.ANSI.BLACK,
+        TextColor.ANSI.RED,
+        new TextColor.RGB(0xff, 0xa5, 0x00),
+        TextColor.ANSI.YELLOW,
+        TextColor.ANSI.GREEN,
+        TextColor.ANSI.BLUE,
+        TextColor.ANSI.CYAN,
+        TextColor.ANSI.MAGENTA,
+        TextColor.ANSI.DEFAULT,
+    };
+
+    // Cached TextCharacters for ASCII characters, per foreground and
+    // background color pair. TextCharacter is immutable, so the same
+    // instance can be put in any number of screen cells.
+    private static final int CACHED_CHARS = 128;
+    private final TextCharacter[][] characterCache =
+        new TextCharacter[COLORS.length * COLORS.length][];
+
+    private static TextCharacter newTextCharacter(char c, Color foreground, Color background) {
+        return new TextCharacter(c, TEXT_COLORS[foreground.ordinal()],
+            TEXT_COLORS[background.ordinal()]);
+    }
+
+    // Return the TextCharacter for c in the given colors, from the cache
+    // where possible
+    private TextCharacter toTextCharacter(char c, Color foreground, Color background) {
+        if (c >= CACHED_CHARS) {
+            return newTextCharacter(c, foreground, background);
+        }
+        int pair = foreground.ordinal() * COLORS.length + background.ordinal();
+        TextCharacter[] chars = characterCache[pair];
+        if (chars == null) {
+            chars = new TextCharacter[CACHED_CHARS];
+            characterCache[pair] = chars;
+        }
+        TextCharacter tc = chars[c];
+        if (tc == null) {
+            tc = newTextCharacter(c, foreground, background);
+            chars[c] = tc;
+        }
+        return tc;
+    }
+
+    /**
+    * Draw a character at the given screen position x and y with the
+    * given colors
+    *
+    * @param x The x coordinate to draw the character
+    * @param y The y coordinates to draw the character
+    * @param c The character to draw
+    * @param foregroundColor The foreground color of the character
+    * @param backgroundColor The background color of the character
+    */
+    @Override
+    public void drawCharacter(int x, int y, char c,
+        Color foregroundColor, Color backgroundColor) {
+        screen.setCharacter(x, y, toTextCharacter(c, foregroundColor, backgroundColor));
+    }
+
+    /**
+    * Draw a run of characters starting at the given screen position x
+    * and y with the given colors. ASCII text is drawn without allocating.
+    *
+    * @param x The x coordinate of the first character
+    * @param y The y coordinate of the characters
+    * @param text The characters to draw
+    * @param foregroundColor The foreground color of the characters
+    * @param backgroundColor The background color of the characters
+    */
+    @Override
+    public void drawString(int x, int y, CharSequence text,
+        Color foregroundColor, Color backgroundColor) {
+        for (int i = 0; i < text.length(); i++) {
+            screen.setCharacter(x + i, y,
+                toTextCharacter(text.charAt(i), foregroundColor, backgroundColor));
+        }
+    }
+
+    // /**
+    // * Draw a line at the given screen position x and y with the
+    // * given colors
+    // *
+    // * @param sx The x coordinate to start the line
+    // * @param sy The y coordinates to start the line
+    // * @param ex The x coordinates to end the line
+    // * @param ey The y coordinates to end the line
+    // * @param c The character to draw as the line
+    // * @param foregroundColor The foreground color of the character
+    // * @param backgroundColor The background color of the character
+    // */
+    // public void drawLine(int sx, int sy, int ex, int ey, char c,
+    //   String foregroundColor, String backgroundColor) {
+    //   TextColor foregroundTextColor = toTextColor(foregroundColor);
+    //   TextColor backgroundTextColor = toTextColor(backgroundColor);
+    //   graphics.drawLine(sx, sy, ex, ey, new TextCharacter(c,
+    //     foregroundTextColor, backgroundTextColor));
+    // }
+
+    /**
+    * Return the character that the user pressed. If the user didn't press
+    * a key, it returns (char) 0x0;
+    *
+    * @return The character that the user pressed, or 0x0 if none
+    */
+    @Override
+    public int getKeypress() {
+        Integer key = keys.poll();
+        return key == null ? 0 : key;
+    }
+
+    /**
+    * Wait until the user presses a key and return it. This does not use
+    * any CPU while waiting. EOF_KEY is returned once the terminal input
+    * is closed, and RESIZE_KEY when the terminal changes size.
+    *
+    * @return The character that the user pressed
+    */
+    @Override
+    public int waitKeypress() {
+        try {
+            return keys.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Gui.EOF_KEY;
+        }
+    }
+
+    // Keys read by the input thread that the caller has not taken yet
+    private final LinkedBlockingQueue<Integer> keys = new LinkedBlockingQueue<>();
+    private Thread inputThread;
+
+    // Start a daemon thread that blocks reading the terminal and queues
+    // every key, so the caller never has to poll
+    private void startInput() {
+        if (inputThread != null) {
+            return;
+        }
+        terminal.addResizeListener((t, size) -> keys.add(Gui.RESIZE_KEY));
+        inputThread = new Thread(() -> {
+            while (true) {
+                int key;
+                try {
+                    key = toKey(readInput());
+                } catch (IOException e) {
+                    key = Gui.EOF_KEY;
+                }
+                if (key != 0) {
+                    keys.add(key);
+                }
+                if (key == Gui.EOF_KEY) {
+                    return;
+                }
+            }
+        }, "gui-input");
+        inputThread.setDaemon(true);
+        inputThread.start();
+    }
+
+    // Block until the terminal has a key stroke
+    private KeyStroke readInput() throws IOException {
+        return screen.readInput();
+    }
+
+    // Convert a key stroke to one of the key constants, or its character.
+    // Returns 0 for keys that have neither.
+    private static int toKey(KeyStroke ks) {
+        if (ks == null) {
+            return 0;
+        }
+        switch (ks.getKeyType()) {
+        case ArrowDown:
+            return Gui.DOWN_ARROW_KEY;
+
+        case ArrowUp:
+            return Gui.UP_ARROW_KEY;
+
+        case ArrowRight:
+            return Gui.RIGHT_ARROW_KEY;
+
+        case ArrowLeft:
+            return Gui.LEFT_ARROW_KEY;
+
+        case Escape:
+            return Gui.ESCAPE_KEY;
+
+        case Backspace:
+            return Gui.BACKSPACE_KEY;
+
+        case Enter:
+            return Gui.ENTER_KEY;
+
+        case EOF:
+            return Gui.EOF_KEY;
+
+        case Character:
+            char c = ks.getCharacter();
+            if (ks.isCtrlDown() && c >= 'a' && c <= 'z') {
+                // Ctrl-A is 1 up to Ctrl-Z is 26, like the terminal sends
+                return c - 'a' + 1;
+            }
+            return c;
+
+        default:
+            return 0;
+        }
+    }
+
+    /**
+    * Log a string to the log file "LOG.txt". This is useful because
+    * printf debugging does not work in drawing mode.
+    */
+    @Override
+    public void log(String text) {
+        text += "\n";
+        try {
+          logfs.write(text.getBytes());
+        } catch (Exception e) {
+          // do nothing
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+public class AutosaveTest {
+    @Test
+    public void testAutosave() throws IOException {
+        Path dir = Files.createTempDirectory("autosave");
+        Path path = dir.resolve("test.txt");
+        Path autosavePath = Autosave.pathFor(path);
+        try {
+            Files.write(path, "Fee fi fo fum\n".getBytes(StandardCharsets.UTF_8));
+            Document document = new Document();
+            assertTrue(document.open(path));
+            // the interval is long enough that only flushNow saves here
+            Autosave autosave = new Autosave(document, autosavePath, Autosave.DEFAULT_INTERVAL);
+
+            // Nothing is written while the document is unchanged
+            assertTrue(autosave.save());
+            assertEquals(false, Files.exists(autosavePath));
+
+            // Edits made while the background thread runs are saved
+            autosave.start();
+            document.set(0, new Rope("Lorem ipsum"));
+            String expected = "Lorem ipsum\n";
+            autosave.flushNow();
+            assertEquals(false, autosave.isSaving());
+            autosave.close();
+            assertEquals(null, autosave.getFailure());
+            assertEquals(expected, new String(Files.readAllBytes(autosavePath),
+                StandardCharsets.UTF_8));
+            assertEquals("Fee fi fo fum\n", new String(Files.readAllBytes(path),
+                StandardCharsets.UTF_8));
+
+            autosave.delete();
+            assertEquals(false, Files.exists(autosavePath));
+        } finally {
+            Files.deleteIfExists(autosavePath);
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testAutosaveFailure() throws IOException {
+        Document document = new Document();
+        Autosave autosave = new Autosave(document,
+            Paths.get("no-such-directory", "test.txt.autosave"), Autosave.DEFAULT_INTERVAL);
+        document.add(0, new Rope("Fee fi fo fum"));
+        // save keeps the error, flushNow throws it
+        assertTrue(autosave.save());
+        assertTrue(autosave.getFailure() != null);
+        autosave.flushNow();
+    }
+}
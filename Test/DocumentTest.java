@@ -3,10 +3,22 @@ import org.junit.Before;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
 
 
 public class DocumentTest {
@@ -32,6 +44,16 @@ public class DocumentTest {
 
         rope = document.makeWordRope("");
         assertEquals(null, rope);
+
+        // A token longer than a leaf is split into balanced leaves
+        StringBuilder sb = new StringBuilder("x ");
+        for (int i = 0; i < 10 * Rope.getMaxLeafSize(); i++) {
+            sb.append('w');
+        }
+        rope = document.makeWordRope(sb.toString());
+        assertEquals(sb.toString(), rope.collect());
+        assertTrue(rope.isBalanced());
+        assertTrue(rope.depth() <= 4);
     }
 
     // Truncate a byte array
@@ -159,4 +181,515 @@ public class DocumentTest {
         document.delete(0);
         assertEquals(data2, document.get(0).collect());
     }
+
+    @Test
+    public void testSnapshot() {
+        String data1 = "Fee fi fo fum";
+        String data2 = "Lorem ipsum dolor";
+        String testdata = data1 + "\n\n" + data2 + "\n";
+        Document document = makeTestDocument(testdata);
+
+        Document snapshot = document.snapshot();
+        document.set(0, new Rope("changed"));
+        document.delete(1);
+        document.add(new Rope("more"));
+
+        assertEquals(testdata, snapshot.collect());
+        assertEquals(4, snapshot.rows());
+        assertEquals("changed\n" + data2 + "\n\nmore", document.collect());
+    }
+
+    @Test
+    public void testHistory() {
+        Document document = makeTestDocument("Fee fi fo fum\n");
+        History history = new History();
+
+        // Three contiguous inserts are one step, the line break another
+        for (int i = 0; i < 3; i++) {
+            history.recordTyping(document, 0, i, i + 1);
+            document.set(0, document.get(0).insert(new Rope("x"), i));
+        }
+        history.record(document, 0, 3);
+        Rope line = document.get(0);
+        document.set(0, line.head(3));
+        document.add(1, line.tail(3));
+        String edited = document.collect();
+        assertEquals(2, history.size());
+
+        History.Version version = history.undo(document, 1, 0);
+        assertEquals(0, version.row);
+        assertEquals(3, version.col);
+        document.restore(version.document);
+        assertEquals("xxxFee fi fo fum\n", document.collect());
+
+        version = history.undo(document, 0, 3);
+        document.restore(version.document);
+        assertEquals("Fee fi fo fum\n", document.collect());
+        assertEquals(null, history.undo(document, 0, 0));
+
+        document.restore(history.redo(document, 0, 0).document);
+        document.restore(history.redo(document, 0, 3).document);
+        assertEquals(edited, document.collect());
+        assertEquals(null, history.redo(document, 1, 0));
+
+        // Typing somewhere else starts a new step, and a new edit drops redo
+        history.undo(document, 1, 0);
+        assertTrue(history.canRedo());
+        history.recordTyping(document, 0, 3, 4);
+        history.recordTyping(document, 0, 0, 1);
+        assertEquals(3, history.size());
+        assertEquals(false, history.canRedo());
+
+        // Old versions are forgotten once over budget
+        History small = new History(2000);
+        for (int i = 0; i < 1000; i++) {
+            small.record(document, 0, 0);
+            document.set(0, new Rope("line" + i));
+        }
+        assertTrue(small.memoryUsed() <= 2000);
+        assertTrue(small.size() > 0 && small.size() < 1000);
+        Document last = small.undo(document, 0, 0).document;
+        assertEquals("line998", last.get(0).collect());
+    }
+
+    @Test
+    public void testManyLines() {
+        // Compare against a plain list under a mix of line edits
+        Document document = new Document();
+        ArrayList<Rope> expected = new ArrayList<>();
+        Random random = new Random(42);
+        for (int n = 0; n < 5000; n++) {
+            int op = random.nextInt(4);
+            Rope rope = random.nextInt(5) == 0 ? null : new Rope("line" + n);
+            if (op == 0 || expected.isEmpty()) {
+                int i = random.nextInt(expected.size() + 1);
+                document.add(i, rope);
+                expected.add(i, rope);
+            } else if (op == 1) {
+                document.add(rope);
+                expected.add(rope);
+            } else if (op == 2) {
+                int i = random.nextInt(expected.size());
+                document.set(i, rope);
+                expected.set(i, rope);
+            } else {
+                int i = random.nextInt(expected.size());
+                document.delete(i);
+                expected.remove(i);
+            }
+        }
+        assertEquals(expected.size(), document.rows());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(expected.get(i) == document.get(i));
+        }
+    }
+
+    @Test
+    public void testReadLineEndings() {
+        Document document = new Document();
+        byte[] data = "Fee\r\nfi\rfo\n\r\nfum".getBytes(StandardCharsets.UTF_8);
+        assertTrue(document.read(new ByteArrayInputStream(data)));
+        assertEquals(6, document.rows());
+        assertEquals("Fee", document.get(0).collect());
+        assertEquals("fi", document.get(1).collect());
+        assertEquals("fo", document.get(2).collect());
+        assertEquals(null, document.get(3));
+        assertEquals("fum", document.get(4).collect());
+        assertEquals(null, document.get(5));
+        assertEquals(data.length, document.getBytesRead());
+
+        document.read(new ByteArrayInputStream(new byte[0]));
+        assertEquals(1, document.rows());
+        assertEquals(null, document.get(0));
+    }
+
+    @Test
+    public void testReadLarge() {
+        // Multi-byte characters and line breaks straddle the read buffer
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("caf\u00e9 \u2603 ").append(i).append(i % 7 == 0 ? "\r\n" : "\n");
+        }
+        String testdata = sb.toString();
+        Document document = new Document();
+        assertTrue(document.read(new ByteArrayInputStream(
+            testdata.getBytes(StandardCharsets.UTF_8))));
+        assertEquals(20001, document.rows());
+        assertEquals(testdata.replace("\r\n", "\n"), document.collect());
+
+        // The charset is explicit
+        assertTrue(document.read(Channels.newChannel(new ByteArrayInputStream(
+            new byte[] {'c', 'a', 'f', (byte) 0xe9})), StandardCharsets.ISO_8859_1));
+        assertEquals("caf\u00e9", document.get(0).collect());
+    }
+
+    @Test
+    public void testOpen() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Fee fi fo fum\n\nna\u00efve caf\u00e9 \u2603 \ud83d\ude00\r\n");
+        for (int i = 0; i < 30000; i++) {
+            sb.append(i % 10 == 0 ? "\u00e9" : "x");   // one very long line
+        }
+        sb.append("\nlast");
+        String testdata = sb.toString();
+        Path path = Files.createTempFile("document", ".txt");
+        try {
+            Files.write(path, testdata.getBytes(StandardCharsets.UTF_8));
+            Document document = new Document();
+            assertTrue(document.open(path));
+
+            Document expected = new Document();
+            expected.read(new ByteArrayInputStream(testdata.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(expected.rows(), document.rows());
+            assertEquals(expected.collect(), document.collect());
+
+            // Leaves are not decoded into strings
+            Rope first = document.get(0);
+            assertTrue(first.isLeaf());
+            assertTrue(first.text instanceof MappedText);
+            assertEquals('f', first.charAt(4));
+
+            // Edits keep the untouched ASCII parts in the mapping
+            Rope edited = first.delete(3);
+            assertEquals("Feefi fo fum", edited.collect());
+            assertTrue(edited.left.text instanceof MappedText);
+            assertTrue(edited.right.text instanceof MappedText);
+            Rope inserted = document.get(2).insert(new Rope("!"), 4);
+            assertEquals("na\u00efv!e caf\u00e9 \u2603 \ud83d\ude00", inserted.collect());
+
+            // Opening again closes the old file, but its lines can still
+            // be read and written
+            Document old = document.snapshot();
+            MappedFile file = ((MappedText) first.text).file();
+            assertTrue(document.open(path));
+            assertEquals(false, file.isOpen());
+            assertEquals(expected.collect(), old.collect());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            old.write(Channels.newChannel(out), StandardCharsets.UTF_8);
+            ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+            expected.write(Channels.newChannel(expectedOut), StandardCharsets.UTF_8);
+            assertEquals(expectedOut.toString(StandardCharsets.UTF_8),
+                out.toString(StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(path);
+        }
+
+        assertEquals(false, new Document().open(path));
+    }
+
+    @Test
+    public void testSave() throws IOException {
+        Path dir = Files.createTempDirectory("document");
+        Path path = dir.resolve("test.txt");
+        try {
+            String data1 = "Fee fi fo fum";
+            String data2 = "Lorem ipsum \u00e9 \ud83d\ude00";
+            String testdata = data1 + "\n\n" + data2 + "\n";
+            Files.write(path, testdata.getBytes(StandardCharsets.UTF_8));
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+            Files.setPosixFilePermissions(path, permissions);
+
+            // Save over the file the document is mapped from
+            Document document = new Document();
+            assertTrue(document.open(path));
+            // split the surrogate pair between two leaves
+            Rope line = document.get(2);
+            document.set(2, new Rope(line.head(line.length() - 1), line.tail(line.length() - 1)));
+            document.add(1, new Rope("How now brown cow"));
+            document.save(path);
+
+            String saved = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            assertEquals(data1 + "\nHow now brown cow\n\n" + data2 + "\n", saved);
+            assertEquals(permissions, Files.getPosixFilePermissions(path));
+            assertEquals(1, dir.toFile().list().length);
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSaveNewFile() throws IOException {
+        Path dir = Files.createTempDirectory("document");
+        Path path = dir.resolve("test.txt");
+        Path other = dir.resolve("other.txt");
+        try {
+            makeTestDocument("Fee fi fo fum").save(path);
+            assertEquals("Fee fi fo fum\n", new String(Files.readAllBytes(path),
+                StandardCharsets.UTF_8));
+            // a new file gets the same permissions as any other new file
+            Files.createFile(other);
+            assertEquals(Files.getPosixFilePermissions(other), Files.getPosixFilePermissions(path));
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(other);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSaveSymlink() throws IOException {
+        Path dir = Files.createTempDirectory("document");
+        Path path = dir.resolve("test.txt");
+        Path link = dir.resolve("link.txt");
+        try {
+            Files.write(path, "Fee fi fo fum".getBytes(StandardCharsets.UTF_8));
+            Files.createSymbolicLink(link, path.getFileName());
+            makeTestDocument("How now brown cow").save(link);
+            assertTrue(Files.isSymbolicLink(link));
+            assertEquals("How now brown cow\n", new String(Files.readAllBytes(path),
+                StandardCharsets.UTF_8));
+            assertEquals(2, dir.toFile().list().length);
+        } finally {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSaveLoneSurrogate() throws IOException {
+        Path dir = Files.createTempDirectory("document");
+        Path path = dir.resolve("test.txt");
+        try {
+            // e.g. left behind by a backspace after \ud83d\ude00
+            Document document = new Document();
+            document.add(0, new Rope("smile \ud83d"));
+            document.add(1, new Rope(new Rope("x\ud83d"), new Rope("y \ude00z")));
+            document.save(path);
+            assertEquals("smile ?\nx?y ?z", new String(Files.readAllBytes(path),
+                StandardCharsets.UTF_8));
+
+            // characters the charset does not have are replaced too
+            document.add(2, new Rope("\u20ac5"));
+            document.save(path, StandardCharsets.ISO_8859_1);
+            assertEquals("smile ?\nx?y ?z\n?5", new String(Files.readAllBytes(path),
+                StandardCharsets.ISO_8859_1));
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSaveError() throws IOException {
+        Document document = makeTestDocument("Fee fi fo fum");
+        document.save(Paths.get("no-such-directory", "test.txt"));
+    }
+
+    @Test
+    public void testSavePassthrough() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append("line ").append(i).append(i % 1000 == 0 ? " \u2603\r\n" : "\n");
+            if (i % 777 == 0) {
+                sb.append('\n');
+            }
+        }
+        String testdata = sb.toString();
+        Path dir = Files.createTempDirectory("document");
+        Path source = dir.resolve("source.txt");
+        Path target = dir.resolve("target.txt");
+        try {
+            Files.write(source, testdata.getBytes(StandardCharsets.UTF_8));
+            Document document = new Document();
+            assertTrue(document.open(source));
+
+            // Unchanged documents are copied byte for byte, except that
+            // line breaks become \n
+            document.save(target);
+            String saved = new String(Files.readAllBytes(target), StandardCharsets.UTF_8);
+            assertEquals(testdata.replace("\r\n", "\n"), saved);
+
+            // Edit a few lines in different ways
+            document.set(10, document.get(10).insert(new Rope("edited "), 5));
+            document.set(2000, document.get(2000).delete(2));
+            document.add(30000, new Rope("new line"));
+            document.delete(40000);
+            Rope joined = document.get(45000).concat(document.get(45001));
+            document.set(45000, joined);
+            document.delete(45001);
+            String expected = document.collect();
+
+            document.save(target);
+            saved = new String(Files.readAllBytes(target), StandardCharsets.UTF_8);
+            assertEquals(expected, saved);
+
+            // Also through a stream, which is not a FileChannel
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            assertTrue(document.write(os));
+            assertEquals(expected, new String(os.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testChunkingOff() {
+        StringBuilder sb = new StringBuilder("Fee ");
+        for (int i = 0; i < 1000; i++) {
+            sb.append('w');
+        }
+        String line = sb.toString();
+        String text = line + "\nfi fo fum\n";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            Rope.setLeafSize(0, 0);
+
+            // Long words are not split into leaves
+            Document document = new Document();
+            assertTrue(document.read(new ByteArrayInputStream(bytes)));
+            assertEquals(text, document.collect());
+            assertEquals(1000, document.get(0).right.length());
+            Document offHeap = new Document();
+            offHeap.setLeafArena(new LeafArena());
+            assertTrue(offHeap.read(new ByteArrayInputStream(bytes)));
+            assertEquals(text, offHeap.collect());
+            assertTrue(offHeap.get(0).isLeaf());
+
+            // nor is a long paste
+            View view = new View(document, null);
+            view.moveTo(1, 3);
+            view.insert(line);
+            assertEquals("fi " + line + "fo fum", document.get(1).collect());
+        } finally {
+            Rope.setLeafSize(64, 512);
+        }
+    }
+
+    @Test
+    public void testReduce() {
+        Document document = new Document();
+        String text = "level=INFO msg=started\nlevel=INFO msg=started\n"
+            + "level=WARN msg=started\nlevel=INFO msg=started\n";
+        document.read(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(document.get(0) != document.get(1));
+        document.reduce();
+        assertEquals(text, document.collect());
+
+        // Equal lines and pieces of lines are shared
+        Rope line = document.get(0);
+        assertTrue(document.get(1) == line);
+        assertTrue(document.get(3) == line);
+        assertTrue(document.get(2).right == line.right);
+
+        // Reducing again changes nothing, and an edited line shares the
+        // rest of the document
+        Document snapshot = document.snapshot();
+        document.reduce();
+        assertTrue(document.isSameVersion(snapshot));
+        document.set(1, new Rope(new Rope(new Rope("level=INFO"), new Rope(" ")), line.right));
+        document.reduce();
+        assertTrue(document.get(1) == line);
+        assertEquals(text, document.collect());
+    }
+
+    @Test
+    public void testCompactLeaves() throws IOException {
+        Document document = new Document();
+        String text = "Fee fi\ncaf\u00e9 au lait\n\u20ac5 each\n";
+        document.read(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(text, document.collect());
+
+        // Leaves are stored as bytes where every character fits in one
+        assertTrue(document.get(0).leaves().next().latin1 != null);
+        assertTrue(document.get(1).leaves().next().latin1 != null);
+        assertEquals("\u20ac5", document.get(2).leaves().next().data);
+
+        // and are copied or encoded as needed for each charset
+        document.set(2, new Rope("5 each"));
+        String expected = text.replace("\u20ac", "");
+        for (Charset charset : new Charset[] {
+            StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.write(Channels.newChannel(out), charset);
+            assertEquals(expected, new String(out.toByteArray(), charset));
+        }
+    }
+
+    @Test
+    public void testLeafArena() throws IOException {
+        LeafArena arena = new LeafArena(64);
+        OffHeapText text = arena.allocate("caf\u00e9 au lait");
+        assertEquals("caf\u00e9 au lait", text.toString());
+        assertEquals('\u00e9', text.charAt(3));
+        assertEquals("caf\u00e9 au lait".hashCode(), text.hashCode());
+        assertEquals("lait", text.slice(8, 12).toString());
+        assertEquals(false, text.isAscii());
+        OffHeapText wide = arena.allocate("x \u20ac5 y", 2, 4);
+        assertEquals("\u20ac5", wide.toString());
+        assertEquals(false, wide.isLatin1());
+        assertEquals("5", wide.slice(1, 2).toString());
+        assertEquals(arena.allocate("5"), wide.slice(1, 2));
+
+        // Small arena leaves are not merged, which would copy them onto
+        // the heap
+        Rope joined = new Rope(text).concat(new Rope(wide));
+        assertEquals("caf\u00e9 au lait\u20ac5", joined.collect());
+        assertTrue(joined.left.text == text);
+        assertTrue(joined.right.text == wide);
+
+        // nor is text inserted into one copied onto the heap with it
+        Rope inserted = new Rope(text).insert(new Rope("!"), 4);
+        assertEquals("caf\u00e9! au lait", inserted.collect());
+        Iterator<Rope> leaves = inserted.leaves();
+        assertTrue(leaves.next().text instanceof OffHeapText);
+        assertEquals("!", leaves.next().data);
+        assertTrue(leaves.next().text instanceof OffHeapText);
+
+        // Lines read into a document with an arena are kept off the heap
+        Document document = new Document();
+        document.setLeafArena(arena);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("line ").append(i).append(i % 10 == 0 ? " caf\u00e9\n" : " \u20ac\n");
+        }
+        String expected = sb.toString();
+        document.read(new ByteArrayInputStream(expected.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(expected, document.collect());
+        assertTrue(document.get(0).leaves().next().text instanceof OffHeapText);
+        assertTrue(arena.slabs() > 1);
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.UTF_16}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.write(Channels.newChannel(out), charset);
+            assertEquals(expected, new String(out.toByteArray(), charset));
+        }
+        Document latin1 = new Document();
+        latin1.setLeafArena(arena);
+        latin1.read(new ByteArrayInputStream(
+            "caf\u00e9\nau lait".getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        latin1.write(Channels.newChannel(out), StandardCharsets.ISO_8859_1);
+        assertEquals("caf\u00e9\nau lait\n", new String(out.toByteArray(),
+            StandardCharsets.ISO_8859_1));
+
+        // A slab's buffer is given back once no leaf uses the slab, and
+        // the next slab reuses it. Here the release actions are run by
+        // hand, as the Cleaner would run them once the slab is collected.
+        ArrayList<Runnable> releases = new ArrayList<>();
+        LeafArena small = new LeafArena(16, (slab, release) -> releases.add(release));
+        small.allocate("0123456789abcdef");
+        small.allocate("x");
+        assertEquals(2, small.slabs());
+        assertEquals(32, small.reservedBytes());
+        releases.get(0).run();
+        assertEquals(1, small.slabs());
+        assertEquals(32, small.reservedBytes());
+        OffHeapText reused = small.allocate("fedcba9876543210");
+        assertEquals("fedcba9876543210", reused.toString());
+        assertEquals(3, releases.size());
+        assertEquals(2, small.slabs());
+        assertEquals(32, small.reservedBytes());
+
+        // Slabs of other sizes are not kept for reuse
+        small.allocate("a line longer than a slab");
+        small.allocate("y");
+        assertEquals(4, small.slabs());
+        assertEquals(32 + 25 + 16, small.reservedBytes());
+        releases.get(3).run();
+        assertEquals(3, small.slabs());
+        assertEquals(32 + 16, small.reservedBytes());
+    }
 }
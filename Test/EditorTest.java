@@ -0,0 +1,154 @@
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+
+public class EditorTest {
+    @Test
+    public void testEditor() throws Exception {
+        Document document = new Document();
+        document.read(new ByteArrayInputStream(
+            "Fee fi fo fum\nI smell\n".getBytes(StandardCharsets.UTF_8)));
+        MemoryGui gui = new MemoryGui(20, 5);
+        View view = new View(document, gui);
+        Editor editor = new Editor(gui, view);
+        StringWriter trace = new StringWriter();
+        editor.setTrace(trace);
+        view.draw();
+        assertEquals("Fee fi fo fum       ", gui.getRow(0));
+
+        // A batch of keys is applied before the screen is drawn again
+        int frames = gui.getFrames();
+        gui.press(Gui.DOWN_ARROW_KEY);
+        gui.type("<Hi> ");
+        gui.press(Gui.ENTER_KEY);
+        assertTrue(editor.process(gui.waitKeypress()));
+        assertEquals(frames + 1, gui.getFrames());
+        assertEquals("Fee fi fo fum\n<Hi> \nI smell\n", document.collect());
+        assertEquals("<Hi>                ", gui.getRow(1));
+        assertEquals(0, gui.getCursorX());
+        assertEquals(2, gui.getCursorY());
+        assertEquals("<DOWN><LT>Hi> <ENTER>\n", trace.toString());
+
+        // Line joins and undo
+        gui.press(Gui.BACKSPACE_KEY);
+        assertTrue(editor.process(gui.waitKeypress()));
+        assertEquals("Fee fi fo fum\n<Hi> I smell\n", document.collect());
+        gui.press(Gui.UNDO_KEY);
+        assertTrue(editor.process(gui.waitKeypress()));
+        assertEquals("Fee fi fo fum\n<Hi> \nI smell\n", document.collect());
+
+        // The trace reads back as the same keys
+        String[] lines = trace.toString().split("\n");
+        assertEquals(3, lines.length);
+        int[] keys = KeyTrace.parse(lines[0]);
+        assertEquals(7, keys.length);
+        assertEquals(Gui.DOWN_ARROW_KEY, keys[0]);
+        assertEquals((int) '<', keys[1]);
+        assertEquals(Gui.ENTER_KEY, keys[6]);
+
+        // Escape quits without drawing
+        frames = gui.getFrames();
+        gui.press(Gui.ESCAPE_KEY);
+        assertEquals(false, editor.process(gui.waitKeypress()));
+        assertEquals(frames, gui.getFrames());
+    }
+
+    @Test
+    public void testScroll() throws Exception {
+        Document document = new Document();
+        document.read(new ByteArrayInputStream(
+            "one\ntwo\nthree\nfour\nfive 12345678\nsix\n".getBytes(StandardCharsets.UTF_8)));
+        MemoryGui gui = new MemoryGui(8, 3);
+        View view = new View(document, gui);
+        view.draw();
+        assertEquals("one     ", gui.getRow(0));
+        assertEquals("three   ", gui.getRow(2));
+
+        // Moving below the last screen row scrolls just far enough down
+        view.moveTo(4, 0);
+        view.draw();
+        assertEquals("three   ", gui.getRow(0));
+        assertEquals("four    ", gui.getRow(1));
+        assertEquals("five 123", gui.getRow(2));
+        assertEquals(0, gui.getCursorX());
+        assertEquals(2, gui.getCursorY());
+
+        // Moving past the right edge scrolls every row sideways
+        view.moveTo(4, 10);
+        view.draw();
+        assertEquals("ee      ", gui.getRow(0));
+        assertEquals("r       ", gui.getRow(1));
+        assertEquals("e 123456", gui.getRow(2));
+        assertEquals(7, gui.getCursorX());
+        assertEquals(2, gui.getCursorY());
+
+        // and back again, cursor on the left edge
+        view.moveTo(4, 1);
+        view.draw();
+        assertEquals("ive 1234", gui.getRow(2));
+        assertEquals(0, gui.getCursorX());
+
+        // Moving above the top scrolls up
+        view.moveTo(1, 0);
+        view.draw();
+        assertEquals("two     ", gui.getRow(0));
+        assertEquals("three   ", gui.getRow(1));
+        assertEquals("four    ", gui.getRow(2));
+        assertEquals(0, gui.getCursorX());
+        assertEquals(0, gui.getCursorY());
+    }
+
+    @Test
+    public void testDamage() throws Exception {
+        Document document = new Document();
+        document.read(new ByteArrayInputStream(
+            "one\ntwo\nthree\n".getBytes(StandardCharsets.UTF_8)));
+        MemoryGui gui = new MemoryGui(8, 4);
+        View view = new View(document, gui);
+        view.draw();
+        for (int y = 0; y < 4; y++) {
+            assertEquals(1, gui.getPaints(y));
+        }
+
+        // Drawing again with nothing changed paints nothing
+        view.draw();
+        for (int y = 0; y < 4; y++) {
+            assertEquals(1, gui.getPaints(y));
+        }
+
+        // An edit repaints only the row it changed
+        view.moveTo(1, 3);
+        view.insert('s');
+        view.draw();
+        assertEquals("twos    ", gui.getRow(1));
+        assertEquals(1, gui.getPaints(0));
+        assertEquals(2, gui.getPaints(1));
+        assertEquals(1, gui.getPaints(2));
+        assertEquals(1, gui.getPaints(3));
+
+        // A line break repaints the rows below it, which all moved down
+        view.linebreak();
+        view.draw();
+        assertEquals("twos    ", gui.getRow(1));
+        assertEquals("        ", gui.getRow(2));
+        assertEquals("three   ", gui.getRow(3));
+        assertEquals(1, gui.getPaints(0));
+        assertEquals(2, gui.getPaints(1));
+        assertEquals(2, gui.getPaints(2));
+        assertEquals(2, gui.getPaints(3));
+
+        // Scrolling sideways repaints every row
+        view.moveTo(3, 5);
+        view.insert("4567");
+        view.draw();
+        assertEquals("ree4567 ", gui.getRow(3));
+        assertEquals(2, gui.getPaints(0));
+        assertEquals(3, gui.getPaints(1));
+        assertEquals(3, gui.getPaints(2));
+        assertEquals(3, gui.getPaints(3));
+    }
+}
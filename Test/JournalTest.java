@@ -0,0 +1,80 @@
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+public class JournalTest {
+    @Test
+    public void testJournal() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        Path path = dir.resolve("test.txt");
+        Path journalPath = Journal.pathFor(path);
+        try {
+            Files.write(path, "Fee fi fo fum\nLorem ipsum\n".getBytes(StandardCharsets.UTF_8));
+
+            // Edit through a view that logs to the journal, then stop
+            // without saving
+            Document document = new Document();
+            assertTrue(document.open(path));
+            View view = new View(document, null);
+            Journal journal = Journal.open(path);
+            assertEquals(0, journal.replay(view));
+            view.setJournal(journal);
+            view.insert("Hey \u00e9 ");
+            view.linebreak();
+            view.moveTo(2, 5);
+            view.delete();
+            view.insert("!");
+            view.undo();
+            view.moveTo(1, 3);
+            view.insert("x");
+            journal.close();
+            String edited = document.collect();
+            assertEquals("Hey \u00e9 \nFeex fi fo fum\nLore ipsum\n", edited);
+
+            // A record cut short by a crash is ignored
+            Files.write(journalPath, new byte[] {0, 0, 0, 20, 1, 2},
+                StandardOpenOption.APPEND);
+
+            // Replaying the journal against the unchanged file gives the
+            // same document, and later edits are appended after it
+            document = new Document();
+            assertTrue(document.open(path));
+            view = new View(document, null);
+            journal = Journal.open(path);
+            assertEquals(6, journal.replay(view));
+            assertEquals(edited, document.collect());
+            view.setJournal(journal);
+            view.redo();
+            journal.close();
+
+            document = new Document();
+            assertTrue(document.open(path));
+            journal = Journal.open(path);
+            assertEquals(7, journal.replay(new View(document, null)));
+            assertEquals("Hey \u00e9 \nFeex fi fo fum\nLore ipsum\n", document.collect());
+            journal.delete();
+            assertEquals(false, Files.exists(journalPath));
+
+            // A journal for another version of the file is not replayed
+            journal = Journal.open(path);
+            journal.insert(0, 0, "stale");
+            journal.close();
+            Files.write(path, "changed\n".getBytes(StandardCharsets.UTF_8));
+            document = new Document();
+            assertTrue(document.open(path));
+            journal = Journal.open(path);
+            assertEquals(0, journal.replay(new View(document, null)));
+            journal.delete();
+        } finally {
+            Files.deleteIfExists(journalPath);
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+}
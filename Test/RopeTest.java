@@ -4,6 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.Iterator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 public class RopeTest {
@@ -70,6 +75,26 @@ public class RopeTest {
         assertEquals( testdata1.length() + testdata2.length() + testdata3.length(), rope.totalWeight());
    }
 
+    @Test
+    public void testDepth() {
+        Rope leaf = new Rope(testdata1);
+        assertEquals(0, leaf.depth());
+
+        Rope rope = createTestRope();
+        assertEquals(2, rope.depth());
+        assertEquals(1, rope.left.depth());
+
+        // Weights of a long right leaning rope must still add up
+        Rope chain = new Rope(testdata3);
+        for (int i = 0; i < 1000; i++) {
+            chain = new Rope(new Rope(testdata1), chain);
+        }
+        assertEquals(1000, chain.depth());
+        assertEquals(1000 * testdata1.length() + testdata3.length(),
+            chain.totalWeight());
+        assertEquals('W', chain.charAt(1000 * testdata1.length()));
+    }
+
     @Test
     public void testConcat() {
         Rope leftrope = createTestRope();
@@ -86,6 +111,96 @@ public class RopeTest {
         assertEquals(rope, result);
     }
 
+    @Test
+    public void testBalance() {
+        // Typing one character at a time must not build a linked list
+        Rope typed = new Rope("a");
+        StringBuilder expected = new StringBuilder("a");
+        for (int i = 1; i < 10000; i++) {
+            char c = (char) ('a' + i % 26);
+            typed = typed.concat(new Rope(String.valueOf(c)));
+            expected.append(c);
+        }
+        assertTrue(typed.isBalanced());
+        assertTrue(typed.depth() < 25);
+        assertEquals(expected.toString(), typed.collect());
+
+        // A degenerate rope built by hand can be rebalanced
+        Rope chain = new Rope(testdata1);
+        for (int i = 0; i < 1000; i++) {
+            chain = new Rope(chain, new Rope(testdata2));
+        }
+        assertEquals(false, chain.isBalanced());
+        Rope balanced = chain.balance();
+        assertTrue(balanced.isBalanced());
+        assertEquals(10, balanced.depth());
+        assertEquals(chain.totalWeight(), balanced.totalWeight());
+        assertEquals(balanced, balanced.balance());
+        for (int i = 0; i < chain.totalWeight(); i += 97) {
+            assertEquals(chain.charAt(i), balanced.charAt(i));
+        }
+
+        // Edits on a balanced rope stay balanced
+        Rope edited = typed.delete(5000).insert(new Rope("xyz"), 17);
+        assertTrue(edited.isBalanced());
+        expected.deleteCharAt(5000).insert(17, "xyz");
+        assertEquals(expected.toString(), edited.collect());
+    }
+
+    // Count the leaves in a rope
+    static int countLeaves(Rope rope) {
+        if (rope.isLeaf()) {
+            return 1;
+        }
+        return countLeaves(rope.left) + countLeaves(rope.right);
+    }
+
+    @Test
+    public void testLeafSize() {
+        // Small adjacent leaves are merged by concat
+        Rope merged = new Rope(testdata1).concat(new Rope(testdata2));
+        assertTrue(merged.isLeaf());
+        assertEquals(testdata1 + testdata2, merged.data);
+
+        // Typing at the end of a line fills leaves up to the max size
+        int max = Rope.getMaxLeafSize();
+        Rope typed = new Rope("a");
+        StringBuilder expected = new StringBuilder("a");
+        for (int i = 1; i < 2 * max + 10; i++) {
+            typed = typed.insert(new Rope("b"), typed.totalWeight());
+            expected.append('b');
+        }
+        assertEquals(expected.toString(), typed.collect());
+        assertEquals(3, countLeaves(typed));
+
+        // Typing in the middle splices into the leaf under the cursor
+        int index = typed.totalWeight() - 3;
+        Rope edited = typed.insert(new Rope("c"), index);
+        expected.insert(index, 'c');
+        assertEquals(expected.toString(), edited.collect());
+        assertEquals(3, countLeaves(edited));
+        assertEquals(typed.left, edited.left);
+
+        // A full leaf is split instead of growing past the max size
+        Rope split = typed.insert(new Rope("c"), 3);
+        assertEquals(4, countLeaves(split));
+
+        try {
+            Rope.setLeafSize(0, 0);
+            Rope plain = new Rope(testdata1).concat(new Rope(testdata2));
+            assertEquals(false, plain.isLeaf());
+            Rope inserted = plain.insert(new Rope("x"), 1);
+            assertEquals(4, countLeaves(inserted));
+        } finally {
+            Rope.setLeafSize(64, 512);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLeafSizeInvalid() {
+        Rope.setLeafSize(10, 5);
+    }
+
     @Test
     public void testCollect() {
         Rope rope = createTestRope();
@@ -93,6 +208,120 @@ public class RopeTest {
         assertEquals(testdata, rope.collect());
     }
 
+    @Test
+    public void testAppendTo() throws IOException {
+        Rope rope = createTestRope();
+        String testdata = testdata1 + testdata2 + testdata3;
+
+        StringBuilder sb = new StringBuilder("> ");
+        rope.appendTo(sb);
+        assertEquals("> " + testdata, sb.toString());
+
+        StringWriter writer = new StringWriter();
+        rope.appendTo((Appendable) writer);
+        assertEquals(testdata, writer.toString());
+
+        // Byte leaves, off-heap leaves and leaves longer than the buffer
+        // they are copied through
+        StringBuilder sb2 = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb2.append((char) ('a' + i % 26));
+        }
+        String longText = sb2.toString();
+        Rope mixed = new Rope(new Rope(Rope.compact("caf\u00e9 "), new Rope("\u20ac5 ")),
+            new Rope(new Rope(new LeafArena().allocate("au lait ")), Rope.compact(longText)));
+        String expected = "caf\u00e9 \u20ac5 au lait " + longText;
+        writer = new StringWriter();
+        mixed.appendTo((Appendable) writer);
+        assertEquals(expected, writer.toString());
+        CharBuffer chars = CharBuffer.allocate(expected.length());
+        mixed.appendTo(chars);
+        assertEquals(expected, chars.flip().toString());
+    }
+
+    @Test
+    public void testLeaves() {
+        Rope rope = createTestRope();
+        Iterator<Rope> it = rope.leaves();
+        assertEquals(rope.left.left, it.next());
+        assertEquals(rope.left.right, it.next());
+        assertEquals(rope.right, it.next());
+        assertEquals(false, it.hasNext());
+    }
+
+    @Test
+    public void testCursor() {
+        Rope rope = createTestRope();
+        String testdata = testdata1 + testdata2 + testdata3;
+
+        RopeCursor cursor = new RopeCursor(rope, 0);
+        for (int i = 0; i < testdata.length(); i++) {
+            assertEquals(i, cursor.position());
+            assertEquals(testdata.charAt(i), cursor.next());
+        }
+        assertEquals(false, cursor.hasNext());
+        for (int i = testdata.length() - 1; i >= 0; i--) {
+            assertEquals(testdata.charAt(i), cursor.previous());
+        }
+        assertEquals(false, cursor.hasPrevious());
+
+        // Start in the middle of a leaf and change direction
+        cursor.seek(testdata1.length() + 2);
+        assertEquals(testdata.charAt(testdata1.length() + 2), cursor.next());
+        assertEquals(testdata.charAt(testdata1.length() + 2), cursor.previous());
+        assertEquals(testdata.charAt(testdata1.length() + 1), cursor.previous());
+    }
+
+    @Test
+    public void testDeepRope() {
+        // Far deeper than the call stack allows for recursive code
+        Rope chain = new Rope("a");
+        for (int i = 0; i < 100000; i++) {
+            chain = new Rope(chain, new Rope(i % 2 == 0 ? "b" : "a"));
+        }
+        String collected = chain.collect();
+        assertEquals(100001, collected.length());
+        assertTrue(chain.debugString().startsWith("(100000 null (99999 null "));
+        Rope reduced = chain.reduce();
+        assertEquals(collected, reduced.collect());
+
+        RopeCursor cursor = new RopeCursor(chain, chain.totalWeight());
+        int n = 0;
+        while (cursor.hasPrevious()) {
+            assertEquals(collected.charAt(chain.totalWeight() - 1 - n), cursor.previous());
+            n++;
+        }
+        assertEquals(100001, n);
+    }
+
+    @Test
+    public void testOf() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String text = sb.toString();
+        Rope rope = Rope.of(text, 100);
+        assertEquals(text, rope.collect());
+        assertEquals(10, rope.depth());
+        assertTrue(rope.isBalanced());
+        Iterator<Rope> it = rope.leaves();
+        int leaves = 0;
+        while (it.hasNext()) {
+            assertEquals(100, it.next().totalWeight());
+            leaves++;
+        }
+        assertEquals(1000, leaves);
+
+        // A surrogate pair is kept in one leaf
+        rope = Rope.of("ab\uD83D\uDE00cd", 3);
+        assertEquals("ab\uD83D\uDE00cd", rope.collect());
+        assertEquals("ab", rope.leaves().next().data);
+
+        assertEquals("short", Rope.of("short").data);
+        assertEquals(null, Rope.of(""));
+    }
+
     @Test
     public void testCharAt() {
         Rope rope = createTestRope();
@@ -103,6 +332,48 @@ public class RopeTest {
         }
     }
 
+    @Test
+    public void testCharSequence() {
+        Rope rope = createTestRope();
+        String testdata = testdata1 + testdata2 + testdata3;
+        assertEquals(testdata.length(), rope.length());
+        assertEquals(testdata, rope.toString());
+        assertEquals("(15 null (7 null (7 firefly null null) (8 serenity null null)) "
+            + "(6 Whedon null null))", rope.debugString());
+
+        // Random access after sequential access must not use a stale leaf
+        for (int i = testdata.length() - 1; i >= 0; i -= 3) {
+            assertEquals(testdata.charAt(i), rope.charAt(i));
+        }
+
+        CharSequence sub = rope.subSequence(2, testdata1.length() + 3);
+        assertEquals(testdata.substring(2, testdata1.length() + 3), sub.toString());
+        assertEquals("", rope.subSequence(4, 4).toString());
+
+        Matcher matcher = Pattern.compile("re(n|f)|[A-Z]\\w+").matcher(rope);
+        assertTrue(matcher.find());
+        assertEquals("ref", matcher.group());
+        assertTrue(matcher.find());
+        assertEquals("ren", matcher.group());
+        assertTrue(matcher.find());
+        assertEquals("Whedon", matcher.group());
+        assertEquals(testdata1.length() + testdata2.length(), matcher.start());
+        assertEquals(false, matcher.find());
+
+        // A cursor scans the same text without descending for every index
+        RopeCursor cursor = new RopeCursor(rope, 0);
+        assertEquals(testdata.length(), cursor.length());
+        for (int i = 0; i < testdata.length(); i++) {
+            assertEquals(testdata.charAt(i), cursor.charAt(i));
+        }
+        for (int i = testdata.length() - 1; i >= 0; i -= 2) {
+            assertEquals(testdata.charAt(i), cursor.charAt(i));
+        }
+        matcher = Pattern.compile("[A-Z]\\w+").matcher(cursor);
+        assertTrue(matcher.find());
+        assertEquals("Whedon", matcher.group());
+    }
+
     @Test
     public void testTail() {
         // Leaf tail
@@ -325,4 +596,89 @@ public class RopeTest {
         assertEquals(rope.left.left, result.right.left);
         assertEquals(rope.left.right, result.right.right.right);
     }
+
+    @Test
+    public void testReduceShared() {
+        // Equal subtrees become one object, even with separate strings
+        Rope a = new Rope(new Rope(new String("Fee ")), new Rope(new String("fi")));
+        Rope b = new Rope(new Rope(new String("Fee ")), new Rope(new String("fi")));
+        Rope rope = new Rope(a, new Rope(b, new Rope(" fo")));
+        Rope reduced = rope.reduce();
+        assertEquals(rope.collect(), reduced.collect());
+        assertTrue(reduced.left == a);
+        assertTrue(reduced.right.left == a);
+        assertTrue(reduced.reduce() == reduced);
+
+        // Nothing is copied when every node is already unique
+        Rope unique = new Rope(new Rope("fo"), new Rope(new Rope(" "), new Rope("fum")));
+        assertTrue(unique.reduce() == unique);
+
+        // An interner shares nodes across ropes and across edits
+        RopeInterner interner = new RopeInterner();
+        Rope first = rope.reduce(interner);
+        int size = interner.size();
+        assertEquals(6, size);
+        assertTrue(b.reduce(interner) == a);
+        assertTrue(first.reduce(interner) == first);
+        assertEquals(size, interner.size());
+        Rope edited = new Rope(first.left, new Rope("fo")).reduce(interner);
+        assertTrue(edited.left == a);
+        assertEquals("Fee fifo", edited.collect());
+
+        // Ropes of different shapes are not shared
+        Rope other = new Rope(new Rope("Fee"), new Rope(" fi")).reduce(interner);
+        assertTrue(other != a);
+        assertEquals(a.collect(), other.collect());
+    }
+
+    @Test
+    public void testCompact() {
+        Rope price = Rope.compact("price \u20ac5");
+        assertEquals(null, price.latin1);
+        assertEquals("price \u20ac5", price.data);
+        Rope text = Rope.compact("caf\u00e9 au lait");
+        assertTrue(text.latin1 != null);
+        assertEquals(null, text.data);
+        assertEquals("caf\u00e9 au lait", text.collect());
+        assertEquals('\u00e9', text.charAt(3));
+        assertEquals("lait", text.subrope(8, 12).collect());
+        assertTrue(text.subrope(8, 12).latin1 != null);
+        assertEquals("au", Rope.compact("x au y", 2, 4).collect());
+
+        // Ropes of byte leaves work like any other
+        Rope rope = new Rope(text, Rope.compact(" chaud"));
+        assertEquals("caf\u00e9 au lait chaud", rope.collect());
+        assertEquals('\u00e9', rope.charAt(3));
+        assertEquals("caf au lait chaud", rope.delete(3).collect());
+        assertTrue(rope.delete(3).left.latin1 != null);
+        assertEquals("au lait", rope.subrope(5, 12).collect());
+        StringBuilder sb = new StringBuilder("> ");
+        rope.appendTo(sb);
+        assertEquals("> caf\u00e9 au lait chaud", sb.toString());
+
+        // Text is spliced into byte leaves as bytes if it fits in Latin-1
+        Rope spliced = rope.insert(new Rope(" tr\u00e8s"), 12);
+        assertEquals("caf\u00e9 au lait tr\u00e8s chaud", spliced.collect());
+        assertTrue(spliced.left.latin1 != null);
+        spliced = rope.insert(new Rope(" \u20ac"), 12);
+        assertEquals("caf\u00e9 au lait \u20ac chaud", spliced.collect());
+        assertEquals("caf\u00e9 au lait \u20ac", spliced.left.data);
+
+        // Small leaves are merged as usual, byte for byte if both are bytes
+        Rope merged = Rope.compact("ab").concat(Rope.compact("cd"));
+        assertTrue(merged.isLeaf());
+        assertEquals("abcd", merged.collect());
+        assertTrue(merged.latin1 != null);
+        merged = Rope.compact("ab").concat(new Rope("c\u20ac"));
+        assertTrue(merged.isLeaf());
+        assertEquals("abc\u20ac", merged.data);
+
+        // reduce shares equal leaves whether they are Strings or bytes
+        Rope a = new Rope(Rope.compact("Fee"), new Rope(" fi"));
+        Rope b = new Rope(new Rope("Fee"), Rope.compact(" fi"));
+        RopeInterner interner = new RopeInterner();
+        assertTrue(a.reduce(interner) == a);
+        assertTrue(b.reduce(interner) == a);
+        assertTrue(new Rope(Rope.compact("Fee"), Rope.compact(" fi")).reduce(interner) == a);
+    }
 }
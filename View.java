@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * A View of a Document
  */
@@ -10,45 +12,62 @@ public class View {
     private int row;
     private int col;
 
+    // The document line and column shown in the top left corner of the
+    // screen. The view scrolls so that the cursor is always on screen.
+    private int top;
+    private int left;
+
+    // The rope each screen row showed when it was last drawn. Ropes are
+    // immutable, so if a row still holds the same rope object at the same
+    // horizontal scroll it does not need to be drawn again. valid[i] is
+    // false if row i must be redrawn.
+    private Rope[] drawn = new Rope[0];
+    private boolean[] valid = new boolean[0];
+    private int drawnWidth;
+    private int drawnLeft;
+
+    // default colors WHITE on BLACK
+    private static final Gui.Color FOREGROUND = Gui.Color.WHITE;
+    private static final Gui.Color BACKGROUND = Gui.Color.BLACK;
+
+    // scratch buffer holding the text of the row being drawn
+    private final StringBuilder rowText = new StringBuilder();
+
+    // earlier versions of the document for undo and redo
+    private final History history = new History();
+
+    // log of the edits made through this view, or null
+    private Journal journal;
+
     public View(Document document, Gui gui) {
         // TODO - your code here
         this.document = document;
         this.gui = gui;
         this.row = 0;
         this.col = 0;
+        this.top = 0;
+        this.left = 0;
     }
 
     /**
-     * Draw this view with the GUI
+     * Log every edit made through this view to journal from now on, or
+     * stop logging if journal is null
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Draw this view with the GUI. Only rows whose rope changed since the
+     * last draw are painted, and only the part of each line that is on
+     * screen is read.
      */
     public void draw() {
         // TODO - your code here
-        gui.clear();
-
         int rows = document.rows();
         int screenHeight = gui.getScreenHeight();
         int screenWidth = gui.getScreenWidth();
 
-        int maxRows = Math.min(rows, screenHeight);
-
-        for (int i = 0; i < maxRows; i++) {
-            String line;
-            Rope rope = document.get(i);
-
-            if (rope == null) {
-                line = "";
-            } else {
-                line = rope.collect();
-            }
-
-            int maxCols = Math.min(line.length(), screenWidth);
-            for (int c = 0; c < maxCols; c++) {
-                char ch = (c < line.length()) ? line.charAt(c) : ' ';
-                gui.drawCharacter(c, i, ch, "WHITE", "BLACK");   
-                // default colors WHITE on BLACK
-            }
-        }
-
         if (rows == 0) {
             row = 0;
             col = 0;
@@ -62,22 +81,66 @@ public class View {
             int len = lineLength(row);
             if (col < 0) {
                 col = 0;
-            } else if (col > len) { 
+            } else if (col > len) {
                 col = len;
             }
         }
 
-        if (row >= screenHeight && screenHeight > 0) {
-            row = screenHeight - 1;
+        // scroll just far enough to bring the cursor on screen
+        if (row < top) {
+            top = row;
+        } else if (screenHeight > 0 && row >= top + screenHeight) {
+            top = row - screenHeight + 1;
+        }
+        if (col < left) {
+            left = col;
+        } else if (screenWidth > 0 && col >= left + screenWidth) {
+            left = col - screenWidth + 1;
+        }
+
+        if (screenHeight != drawn.length || screenWidth != drawnWidth) {
+            // the terminal was resized, start again from a blank screen
+            drawn = new Rope[screenHeight];
+            valid = new boolean[screenHeight];
+            drawnWidth = screenWidth;
+            gui.clear();
+        } else if (left != drawnLeft) {
+            // every row moved sideways
+            Arrays.fill(valid, false);
         }
-        if (col >= screenWidth && screenWidth > 0) {
-            col = screenWidth - 1;
+        drawnLeft = left;
+
+        for (int i = 0; i < screenHeight; i++) {
+            int r = top + i;
+            Rope rope = r < rows ? document.get(r) : null;
+            if (valid[i] && drawn[i] == rope) {
+                continue;
+            }
+            drawRow(i, rope, screenWidth);
+            drawn[i] = rope;
+            valid[i] = true;
         }
 
-        gui.setCursorPosition(col, row);
+        gui.setCursorPosition(col - left, row - top);
         gui.refresh();
     }
 
+    // Paint screen row y with the columns of rope from left onwards,
+    // blanking out the rest of the row. The characters are read with a
+    // cursor, so the cost does not depend on the length of the line.
+    private void drawRow(int y, Rope rope, int screenWidth) {
+        rowText.setLength(0);
+        if (rope != null && rope.totalWeight() > left) {
+            RopeCursor cursor = new RopeCursor(rope, left);
+            while (cursor.hasNext() && rowText.length() < screenWidth) {
+                rowText.append(cursor.next());
+            }
+        }
+        while (rowText.length() < screenWidth) {
+            rowText.append(' ');
+        }
+        gui.drawString(0, y, rowText, FOREGROUND, BACKGROUND);
+    }
 
     private int lineLength(int r) {
         if (r < 0 || r >= document.rows()) {
@@ -90,6 +153,22 @@ public class View {
         return rope.totalWeight();
     }
 
+    // return the line the cursor is on
+    public int getRow() {
+        return row;
+    }
+
+    // return the column of the cursor
+    public int getCol() {
+        return col;
+    }
+
+    // move cursor to row, col, keeping it inside the document
+    public void moveTo(int r, int c) {
+        row = Math.max(0, Math.min(r, document.rows() - 1));
+        col = Math.max(0, Math.min(c, lineLength(row)));
+    }
+
     // move cursor left
     public void moveLeft() {
         // TODO - your code here
@@ -139,43 +218,54 @@ public class View {
 
     // insert a character at this screen position
     public void insert(char c) {
+        insert(String.valueOf(c));
+    }
+
+    // insert text (without line breaks) at this screen position, as one
+    // edit, and move the cursor to its end
+    public void insert(String text) {
         // TODO - your code here
+        if (text.isEmpty()) {
+            return;
+        }
+        if (journal != null) {
+            journal.insert(row, col, text);
+        }
+        history.recordTyping(document, row, col, col + text.length());
         if (document.rows() == 0) {
-            document.add(new Rope(""));
+            document.add(null);
             row = 0;
             col = 0;
         }
         Rope line = document.get(row);
-        Rope left = null;
-        Rope right = null;
-        if (line != null) {
-            left = line.head(col);
-            right = line.tail(col);
-        }
-        Rope mid = new Rope(String.valueOf(c));
+        // a long paste becomes a balanced rope rather than one huge leaf,
+        // unless chunking is off (see Rope.setLeafSize)
+        int maxLeaf = Rope.getMaxLeafSize();
+        Rope mid = maxLeaf < 2 || text.length() <= maxLeaf ? new Rope(text) : Rope.of(text);
         Rope newLine;
-        if (left != null) {
-            newLine = left.concat(mid);
+        if (line != null) {
+            // insert splices the text into the leaf under the cursor
+            newLine = line.insert(mid, col);
         } else {
             newLine = mid;
         }
-
-        if (right != null) {
-            newLine = newLine.concat(right);
-        }
         document.set(row, newLine);
-        col++;
+        col += text.length();
     }
 
     // insert a line break
     public void linebreak() {
         // TODO - your code here
+        if (journal != null) {
+            journal.linebreak(row, col);
+        }
+        history.record(document, row, col);
         if (document.rows() == 0) {
-            document.add(new Rope(""));
+            document.add(null);
         }
         Rope line = document.get(row);
         if (line == null) {
-            document.add(row + 1, new Rope(""));
+            document.add(row + 1, null);
             row++;
             col = 0;
             return;
@@ -191,6 +281,9 @@ public class View {
     // delete a character at directly before this screen position
     public void delete() {
         // TODO - your code here
+        if (journal != null) {
+            journal.delete(row, col);
+        }
         if (document.rows() == 0) {
             return;
         }
@@ -199,18 +292,8 @@ public class View {
             if (line == null) {
                 return;
             }
-            int deleteIndex = col - 1;
-            Rope left = line.head(deleteIndex);   // 0 to deleteIndex - 1
-            Rope right = line.tail(col);   // col to end
-
-            Rope newLine = null;
-            if (left != null && right != null) {
-                newLine = left.concat(right);
-            } else if (left != null) {
-                newLine = left;
-            } else if (right != null) {
-                newLine = right;
-            }
+            history.record(document, row, col);
+            Rope newLine = line.delete(col - 1);   // null if line is now empty
             document.set(row, newLine);
             col--;
             return;
@@ -220,19 +303,42 @@ public class View {
             return;
         }
 
+        // Empty lines are null ropes
         Rope currLine = document.get(row);   // current line
         Rope prevLine = document.get(row - 1);   // previous line
-        if (prevLine == null) {
-            prevLine = new Rope("");
-        } else if (currLine == null) {
-            currLine = new Rope("");
-        }
-        Rope mergedLine = prevLine.concat(currLine);
-        int newCol = prevLine.totalWeight();
-        
+        Rope mergedLine = prevLine == null ? currLine : prevLine.concat(currLine);
+        int newCol = prevLine == null ? 0 : prevLine.totalWeight();
+
+        history.record(document, row, col);
         document.set(row - 1, mergedLine);
         document.delete(row);   // delete current row
         row--;
         col = newCol;    // move cursor to end of previous line
     }
+
+    // go back to the version before the last edit
+    public void undo() {
+        if (journal != null) {
+            journal.undo(row, col);
+        }
+        restore(history.undo(document, row, col));
+    }
+
+    // go forward to the version that the last undo went back from
+    public void redo() {
+        if (journal != null) {
+            journal.redo(row, col);
+        }
+        restore(history.redo(document, row, col));
+    }
+
+    // helper function for undo and redo
+    private void restore(History.Version version) {
+        if (version == null) {
+            return;
+        }
+        document.restore(version.document);
+        row = version.row;
+        col = version.col;
+    }
 }